@@ -0,0 +1,5 @@
+class Book extends LibraryItem<String> {
+    public Book(String title, String author, String itemID) {
+        super(title, author, itemID);
+    }
+}
@@ -0,0 +1,308 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+class Catalog<T extends LibraryItem<ID>, ID> {
+    // Items live in fixed slots; a removed item leaves a null tombstone so the
+    // list never shifts, and slotsById maps each ID straight to its slot.
+    private List<T> libraryItems = new ArrayList<>();
+    private Map<ID, Integer> slotsById = new HashMap<>();
+    private int tombstones = 0;
+    private LiveSlots liveSlots = new LiveSlots();
+    private PrefixIndex<T> titleIndex = new PrefixIndex<>();
+    private PrefixIndex<T> authorIndex = new PrefixIndex<>();
+    private TextIndex<T> textIndex = new TextIndex<>();
+    // Slots from here on were added by addItems and are not yet in the title,
+    // author and text indexes; they are indexed in one pass before the next query.
+    private int indexedUpTo = 0;
+
+    public void addItem(T item) throws DuplicateItemException {
+        ID itemID = item.getItemID();
+        if (slotsById.containsKey(itemID)) {
+            throw new DuplicateItemException("An item already exists with ID: " + itemID);
+        }
+        int slot = libraryItems.size();
+        slotsById.put(itemID, slot);
+        libraryItems.add(item);
+        liveSlots.append();
+        if (indexedUpTo == slot) {
+            indexItem(slot, item);
+            indexedUpTo++;
+        }
+    }
+
+    /**
+     * Adds a batch of items, updating only the ID index. The title, author and
+     * keyword indexes catch up once, in rebuildIndexes() or on the next search,
+     * so a bulk load streams straight into the catalog and the indexes are
+     * then built side by side on separate threads.
+     *
+     * @param rejected receives each item whose ID is already in the catalog
+     * @return the number of items added
+     */
+    public int addItems(List<? extends T> items, Consumer<? super T> rejected) {
+        int added = 0;
+        for (T item : items) {
+            ID itemID = item.getItemID();
+            if (slotsById.containsKey(itemID)) {
+                rejected.accept(item);
+                continue;
+            }
+            slotsById.put(itemID, libraryItems.size());
+            libraryItems.add(item);
+            liveSlots.append();
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Returns whether items added by addItems are still missing from the
+     * title, author and keyword indexes, so the next query would rebuild them.
+     */
+    public boolean needsIndexing() {
+        return indexedUpTo < libraryItems.size();
+    }
+
+    /**
+     * Brings the title, author and keyword indexes up to date after addItems.
+     * Large backlogs are indexed with one thread per index.
+     */
+    public void rebuildIndexes() {
+        int from = indexedUpTo;
+        int to = libraryItems.size();
+        if (from == to) {
+            return;
+        }
+        if (to - from < 10000) {
+            for (int slot = from; slot < to; slot++) {
+                T item = libraryItems.get(slot);
+                if (item != null) {
+                    indexItem(slot, item);
+                }
+            }
+        } else {
+            Thread titles = new Thread(() -> {
+                for (int slot = from; slot < to; slot++) {
+                    T item = libraryItems.get(slot);
+                    if (item != null) {
+                        titleIndex.add(item.getTitle(), item);
+                    }
+                }
+            });
+            Thread authors = new Thread(() -> {
+                for (int slot = from; slot < to; slot++) {
+                    T item = libraryItems.get(slot);
+                    if (item != null) {
+                        authorIndex.add(item.getAuthor(), item);
+                    }
+                }
+            });
+            titles.start();
+            authors.start();
+            for (int slot = from; slot < to; slot++) {
+                T item = libraryItems.get(slot);
+                if (item != null) {
+                    textIndex.add(slot, item);
+                }
+            }
+            try {
+                titles.join();
+                authors.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while rebuilding catalog indexes", e);
+            }
+        }
+        indexedUpTo = to;
+    }
+
+    private void indexItem(int slot, T item) {
+        titleIndex.add(item.getTitle(), item);
+        authorIndex.add(item.getAuthor(), item);
+        textIndex.add(slot, item);
+    }
+
+    public void removeItem(ID itemID) throws ItemNotFoundException {
+        Integer slot = slotsById.remove(itemID);
+        if (slot == null) {
+            throw new ItemNotFoundException("No item found with ID: " + itemID);
+        }
+        T item = libraryItems.set(slot, null);
+        liveSlots.clear(slot);
+        if (slot < indexedUpTo) {
+            titleIndex.remove(item.getTitle(), item);
+            authorIndex.remove(item.getAuthor(), item);
+            textIndex.remove(slot, item);
+        }
+        tombstones++;
+        // Reclaim the dead slots once they make up more than half of the list
+        if (tombstones > 16 && tombstones * 2 > libraryItems.size()) {
+            compact();
+        }
+    }
+
+    public T getItem(ID itemID) throws ItemNotFoundException {
+        Integer slot = slotsById.get(itemID);
+        if (slot == null) {
+            throw new ItemNotFoundException("No item found with ID: " + itemID);
+        }
+        return libraryItems.get(slot);
+    }
+
+    public List<T> findByTitle(String title) {
+        rebuildIndexes();
+        return titleIndex.find(title);
+    }
+
+    public List<T> findByTitlePrefix(String prefix) {
+        rebuildIndexes();
+        return titleIndex.findByPrefix(prefix);
+    }
+
+    public List<T> findByAuthor(String author) {
+        rebuildIndexes();
+        return authorIndex.find(author);
+    }
+
+    public List<T> findByAuthorPrefix(String prefix) {
+        rebuildIndexes();
+        return authorIndex.findByPrefix(prefix);
+    }
+
+    /**
+     * Ranked keyword search over titles and authors.
+     *
+     * @param query free text; every word is matched anywhere in title or author
+     * @param k     the maximum number of results
+     * @return up to k items, best match first
+     */
+    public List<T> search(String query, int k) {
+        List<T> results = new ArrayList<>();
+        for (SearchHit<T> hit : searchHits(query, k)) {
+            results.add(hit.item);
+        }
+        return results;
+    }
+
+    public List<SearchHit<T>> searchHits(String query, int k) {
+        rebuildIndexes();
+        return textIndex.search(query, k, slot -> libraryItems.get(slot));
+    }
+
+    public int size() {
+        return slotsById.size();
+    }
+
+    /**
+     * Visits every item in the order it was added.
+     */
+    public void forEachItem(Consumer<? super T> action) {
+        for (T item : libraryItems) {
+            if (item != null) {
+                action.accept(item);
+            }
+        }
+    }
+
+    /**
+     * Returns up to limit items starting at the given position, in the order
+     * they were added. Finding the first item takes O(log n) and each further
+     * one O(1) on average, so a page costs time in proportion to its length.
+     */
+    public List<T> page(int offset, int limit) {
+        List<T> items = new ArrayList<>(Math.max(0, Math.min(limit, size() - offset)));
+        if (offset < 0 || offset >= size()) {
+            return items;
+        }
+        for (int slot = liveSlots.select(offset); slot < libraryItems.size() && items.size() < limit; slot++) {
+            T item = libraryItems.get(slot);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Streams the items in the order they were added. The stream reads the
+     * catalog lazily, so it must be consumed before the catalog changes.
+     */
+    public Stream<T> stream() {
+        return libraryItems.stream().filter(Objects::nonNull);
+    }
+
+    /**
+     * Writes one page of the catalog to out, one item per line.
+     *
+     * @return the number of items written
+     */
+    public int displayPage(int offset, int limit, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        int written = 0;
+        for (T item : page(offset, limit)) {
+            line.setLength(0);
+            item.formatTo(line).append(System.lineSeparator());
+            out.append(line);
+            written++;
+        }
+        return written;
+    }
+
+    public void displayCatalog() {
+        if (slotsById.isEmpty()) {
+            System.out.println("The catalog is empty right now.");
+            return;
+        }
+        // One buffered writer for the whole listing rather than a flush per line
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            StringBuilder line = new StringBuilder(128);
+            for (T item : libraryItems) {
+                if (item != null) {
+                    line.setLength(0);
+                    item.formatTo(line).append(System.lineSeparator());
+                    out.append(line);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Unable to display the catalog: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops the tombstones and renumbers the remaining slots, keeping the
+     * items in the order they were added. The text index is keyed by slot,
+     * so it is rebuilt along the way.
+     */
+    private void compact() {
+        List<T> liveItems = new ArrayList<>(slotsById.size());
+        liveSlots = new LiveSlots();
+        textIndex = new TextIndex<>();
+        int indexed = 0;
+        for (int slot = 0; slot < libraryItems.size(); slot++) {
+            T item = libraryItems.get(slot);
+            if (item != null) {
+                slotsById.put(item.getItemID(), liveItems.size());
+                if (slot < indexedUpTo) {
+                    textIndex.add(liveItems.size(), item);
+                    indexed++;
+                }
+                liveItems.add(item);
+                liveSlots.append();
+            }
+        }
+        libraryItems = liveItems;
+        indexedUpTo = indexed;
+        tombstones = 0;
+    }
+}
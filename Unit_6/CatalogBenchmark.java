@@ -0,0 +1,497 @@
+/**
+ * This program measures how the library catalog behaves as it grows. It fills
+ * catalogs of increasing size with generated items and times ranked keyword
+ * searches against each one, printing one line of latency figures per size.
+ * With --concurrent it instead stress tests ConcurrentCatalog: it records the
+ * get, add and remove calls many threads make on a set of shared keys, checks
+ * each key's history for linearizability, and prints the throughput reached
+ * at each thread count against the first.
+ *
+ * Compile together with the catalog classes and run, optionally passing the
+ * catalog sizes or thread counts to test:
+ *     javac *.java
+ *     java CatalogBenchmark 10000 100000 1000000
+ *     java CatalogBenchmark --concurrent 1 2 4 8
+ * The JMH benchmarks in benchmarks/ cover the basic add, get, remove and
+ * display operations across all the catalog implementations.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CatalogBenchmark {
+    private static final int QUERIES = 2000;
+    private static final int WARMUP_QUERIES = 500;
+    private static final int TOP_K = 10;
+    private static final int VOCABULARY = 20000;
+
+    // Stress test settings: each thread owns a private key range and all of
+    // them fight over a small shared one, whose histories are then checked.
+    private static final int PRELOADED_ITEMS = 100000;
+    private static final int OWNED_KEYS = 1000;
+    private static final int SHARED_KEYS = 64;
+    private static final long STRESS_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--concurrent")) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            List<Integer> threadCounts = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                threadCounts.add(Integer.parseInt(args[i]));
+            }
+            if (threadCounts.isEmpty()) {
+                for (int t = 1; t <= cores * 2; t *= 2) {
+                    threadCounts.add(t);
+                }
+            }
+            stressConcurrent(threadCounts);
+            return;
+        }
+
+        int[] sizes = {10000, 100000, 1000000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        String[] words = vocabulary(VOCABULARY);
+        System.out.println("Ranked search, top " + TOP_K + ", " + QUERIES + " queries per size");
+        System.out.printf("%12s %10s %10s %10s %10s %10s%n",
+                "items", "build ms", "heap MB", "mean us", "p50 us", "p99 us");
+
+        for (int size : sizes) {
+            Random random = new Random(42);
+            long buildStart = System.nanoTime();
+            Catalog<LibraryItem<String>, String> catalog = fill(size, words, random);
+            long buildMillis = (System.nanoTime() - buildStart) / 1_000_000;
+            long heapMb = usedHeap() / (1024 * 1024);
+
+            String[] queries = new String[WARMUP_QUERIES + QUERIES];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = pick(words, random) + (random.nextBoolean() ? " " + pick(words, random) : "");
+            }
+            long sink = 0;
+            for (int i = 0; i < WARMUP_QUERIES; i++) {
+                sink += catalog.search(queries[i], TOP_K).size();
+            }
+            long[] latencies = new long[QUERIES];
+            for (int i = 0; i < QUERIES; i++) {
+                long start = System.nanoTime();
+                List<LibraryItem<String>> hits = catalog.search(queries[WARMUP_QUERIES + i], TOP_K);
+                latencies[i] = System.nanoTime() - start;
+                sink += hits.size();
+            }
+            Arrays.sort(latencies);
+            long total = 0;
+            for (long latency : latencies) {
+                total += latency;
+            }
+            System.out.printf("%12d %10d %10d %10.1f %10.1f %10.1f%n", size, buildMillis, heapMb,
+                    total / 1000.0 / QUERIES, latencies[QUERIES / 2] / 1000.0,
+                    latencies[(int) (QUERIES * 0.99)] / 1000.0);
+            if (sink < 0) {
+                System.out.println(sink); // keeps the searches from being optimized away
+            }
+        }
+    }
+
+    /**
+     * Runs the stress test once per thread count and prints the throughput
+     * of each run against the first, with the result of its checks.
+     */
+    static void stressConcurrent(List<Integer> threadCounts) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("ConcurrentCatalog stress, " + cores + " cores, " + STRESS_MILLIS + " ms per run");
+        System.out.printf("%8s %14s %12s %10s%n", "threads", "ops/sec", "speedup", "result");
+        stress(threadCounts.get(0), STRESS_MILLIS); // an unreported first run warms up the JIT
+        double baseline = 0;
+        for (int threads : threadCounts) {
+            StressResult result = stress(threads, STRESS_MILLIS);
+            if (baseline == 0) {
+                baseline = result.throughput();
+            }
+            System.out.printf("%8d %14.0f %11.2fx %10s%n", threads, result.throughput(),
+                    result.throughput() / baseline, result.failures.isEmpty() ? "ok" : "FAILED");
+            for (String failure : result.failures.subList(0, Math.min(5, result.failures.size()))) {
+                System.out.println("    " + failure);
+            }
+        }
+        if (threadCounts.get(threadCounts.size() - 1) > cores) {
+            System.out.println("Runs with more threads than the " + cores + " cores cannot speed up; they only"
+                    + " show what contention costs.");
+        }
+    }
+
+    /**
+     * What one stress run did and what its checks found wrong.
+     */
+    static final class StressResult {
+        final long operations;
+        final double seconds;
+        final List<String> failures;
+
+        StressResult(long operations, double seconds, List<String> failures) {
+            this.operations = operations;
+            this.seconds = seconds;
+            this.failures = failures;
+        }
+
+        double throughput() {
+            return operations / seconds;
+        }
+    }
+
+    /**
+     * Runs a mixed get/add/remove workload (80/10/10) against a fresh
+     * ConcurrentCatalog and verifies it.
+     *
+     * Keys owned by a single thread are checked against that thread's own model
+     * of them after every operation, which catches lost or phantom updates. The
+     * operations on the shared keys are recorded with the times they were
+     * invoked and returned, and each key's history is then checked for
+     * linearizability; see checkLinearizable().
+     */
+    static StressResult stress(int threads, long millis) throws Exception {
+        ConcurrentCatalog<LibraryItem<String>, String> catalog = new ConcurrentCatalog<>();
+        for (int i = 0; i < PRELOADED_ITEMS; i++) {
+            catalog.addItem(new Book("Title " + i, "Author " + (i % 997), "P" + i));
+        }
+        AtomicLong operations = new AtomicLong();
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        List<History> histories = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + millis;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            History history = new History();
+            histories.add(history);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    operations.addAndGet(stressWorker(catalog, worker, deadline, history, failures));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            workers.add(thread);
+            thread.start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        List<String> found = new ArrayList<>(failures);
+        found.addAll(checkLinearizable(histories, SHARED_KEYS));
+        return new StressResult(operations.get(), seconds, found);
+    }
+
+    private static long stressWorker(ConcurrentCatalog<LibraryItem<String>, String> catalog, int worker,
+            long deadline, History history, List<String> failures) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Set<String> owned = new HashSet<>();
+        long count = 0;
+        while ((count & 1023) != 0 || System.currentTimeMillis() < deadline) {
+            count++;
+            int op = random.nextInt(10);
+            if (random.nextInt(4) == 0) {
+                int key = random.nextInt(SHARED_KEYS);
+                String id = "S" + key;
+                int type = op == 0 ? History.ADD : op == 1 ? History.REMOVE : History.GET;
+                boolean ok = true;
+                long invoked = System.nanoTime();
+                try {
+                    if (type == History.ADD) {
+                        catalog.addItem(new Book("Shared", "Stress", id));
+                    } else if (type == History.REMOVE) {
+                        catalog.removeItem(id);
+                    } else if (!catalog.getItem(id).getItemID().equals(id)) {
+                        failures.add("get(" + id + ") returned a different item");
+                    }
+                } catch (DuplicateItemException | ItemNotFoundException e) {
+                    ok = false;
+                }
+                history.record(key, type, ok, invoked, System.nanoTime());
+                continue;
+            }
+            String id = "T" + worker + "-" + random.nextInt(OWNED_KEYS);
+            if (op == 0) {
+                boolean added;
+                try {
+                    catalog.addItem(new Book("Owned", "Stress", id));
+                    added = true;
+                } catch (DuplicateItemException e) {
+                    added = false;
+                }
+                if (added == owned.contains(id)) {
+                    failures.add("add(" + id + ") returned " + added + " but the key was " + (added ? "present" : "absent"));
+                }
+                owned.add(id);
+            } else if (op == 1) {
+                boolean removed;
+                try {
+                    catalog.removeItem(id);
+                    removed = true;
+                } catch (ItemNotFoundException e) {
+                    removed = false;
+                }
+                if (removed != owned.contains(id)) {
+                    failures.add("remove(" + id + ") returned " + removed + " but the key was " + (removed ? "absent" : "present"));
+                }
+                owned.remove(id);
+            } else if (exists(catalog, op == 2 ? id : "P" + random.nextInt(PRELOADED_ITEMS)) != (op != 2 || owned.contains(id))) {
+                failures.add("get(" + id + ") disagreed with the thread's own writes");
+            }
+        }
+        return count;
+    }
+
+    private static boolean exists(ConcurrentCatalog<LibraryItem<String>, String> catalog, String id) {
+        try {
+            catalog.getItem(id);
+            return true;
+        } catch (ItemNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The operations one thread made on the shared keys, in the order it made
+     * them: which key, add, remove or get, whether it succeeded, and the
+     * System.nanoTime() at which it was invoked and at which it returned.
+     */
+    static final class History {
+        static final int ADD = 0;
+        static final int REMOVE = 1;
+        static final int GET = 2;
+
+        private int[] ops = new int[1024]; // key << 3 | type << 1 | ok
+        private long[] times = new long[2048]; // invoked, returned
+        private int size = 0;
+
+        void record(int key, int type, boolean ok, long invoked, long returned) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                times = Arrays.copyOf(times, size * 4);
+            }
+            ops[size] = key << 3 | type << 1 | (ok ? 1 : 0);
+            times[2 * size] = invoked;
+            times[2 * size + 1] = returned;
+            size++;
+        }
+    }
+
+    /** One recorded operation on a shared key. */
+    private static final class Operation {
+        final int type;
+        final boolean ok;
+        final long invoked;
+        final long returned;
+
+        Operation(int type, boolean ok, long invoked, long returned) {
+            this.type = type;
+            this.ok = ok;
+            this.invoked = invoked;
+            this.returned = returned;
+        }
+
+        /**
+         * Applies the operation to a key that is present or not, returning
+         * whether it is present afterwards, or null if the operation could
+         * not have returned what it did from that state.
+         */
+        Boolean apply(boolean present) {
+            switch (type) {
+                case History.ADD:
+                    return ok == !present ? Boolean.TRUE : null;
+                case History.REMOVE:
+                    return ok == present ? Boolean.FALSE : null;
+                default:
+                    return ok == present ? present : null;
+            }
+        }
+    }
+
+    /**
+     * Checks each shared key's history for linearizability: that its
+     * operations can be put in one order that respects real time (one that
+     * returned before another was invoked comes first) and in which each
+     * returns what it would on a catalog holding nothing but that key, which
+     * starts out absent. Keys are independent, so each is checked on its own.
+     *
+     * A key's history is cut wherever no operation on it is in flight, and the
+     * pieces are checked in turn, carrying over the states (present, absent or
+     * either) that the piece before could have left. Within a piece the search
+     * tries every operation that may go next and remembers the combinations of
+     * operations done and state reached, as Wing and Gong's algorithm does.
+     *
+     * @return one line per key that has no linearization, empty if all do
+     */
+    static List<String> checkLinearizable(List<History> histories, int keys) {
+        List<List<Operation>> byKey = new ArrayList<>();
+        for (int key = 0; key < keys; key++) {
+            byKey.add(new ArrayList<>());
+        }
+        for (History history : histories) {
+            for (int i = 0; i < history.size; i++) {
+                int op = history.ops[i];
+                byKey.get(op >>> 3).add(new Operation(op >> 1 & 3, (op & 1) != 0,
+                        history.times[2 * i], history.times[2 * i + 1]));
+            }
+        }
+        List<String> failures = new ArrayList<>();
+        for (int key = 0; key < keys; key++) {
+            List<Operation> ops = byKey.get(key);
+            ops.sort((a, b) -> Long.compare(a.invoked, b.invoked));
+            int states = 1; // bit 0: may be absent, bit 1: may be present
+            int from = 0;
+            long lastReturn = Long.MIN_VALUE;
+            for (int i = 0; i <= ops.size() && states != 0; i++) {
+                if (i == ops.size() || (i > from && ops.get(i).invoked > lastReturn)) {
+                    List<Operation> piece = ops.subList(from, i);
+                    int next = 0;
+                    if ((states & 1) != 0) {
+                        next |= endStates(piece, false);
+                    }
+                    if ((states & 2) != 0) {
+                        next |= endStates(piece, true);
+                    }
+                    if (next == 0) {
+                        failures.add("shared key S" + key + ": the " + piece.size() + " operations from "
+                                + describe(piece.get(0)) + " have no linearization");
+                    }
+                    states = next;
+                    from = i;
+                }
+                if (i < ops.size()) {
+                    lastReturn = Math.max(lastReturn, ops.get(i).returned);
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Finds the states a run of operations can leave a key in, starting from
+     * the given one: bit 0 set if absent, bit 1 if present, 0 if the
+     * operations have no linearization from there.
+     */
+    private static int endStates(List<Operation> ops, boolean present) {
+        int n = ops.size();
+        // A search node: bit i set once operation i is done, bit n holding whether the key is present
+        BitSet start = new BitSet(n + 1);
+        start.set(n, present);
+        Set<BitSet> seen = new HashSet<>();
+        Deque<BitSet> pending = new ArrayDeque<>();
+        seen.add(start);
+        pending.push(start);
+        int ends = 0;
+        while (!pending.isEmpty()) {
+            BitSet node = pending.pop();
+            boolean state = node.get(n);
+            int first = node.nextClearBit(0);
+            if (first >= n) {
+                ends |= state ? 2 : 1;
+                continue;
+            }
+            // An operation may go next only if it was invoked before every remaining one returned
+            long deadline = Long.MAX_VALUE;
+            for (int i = first; i < n; i = node.nextClearBit(i + 1)) {
+                deadline = Math.min(deadline, ops.get(i).returned);
+            }
+            for (int i = first; i < n && ops.get(i).invoked <= deadline; i = node.nextClearBit(i + 1)) {
+                Boolean after = ops.get(i).apply(state);
+                if (after != null) {
+                    BitSet next = (BitSet) node.clone();
+                    next.set(i);
+                    next.set(n, after);
+                    if (seen.add(next)) {
+                        pending.push(next);
+                    }
+                }
+            }
+        }
+        return ends;
+    }
+
+    private static String describe(Operation op) {
+        String name = op.type == History.ADD ? "add" : op.type == History.REMOVE ? "remove" : "get";
+        return name + (op.ok ? " (succeeded)" : " (failed)") + " at " + op.invoked + " ns";
+    }
+
+    /**
+     * Builds a catalog of generated books, DVDs and magazines with two to five
+     * title words and a two-word author, drawn with a skew towards common words.
+     */
+    static Catalog<LibraryItem<String>, String> fill(int size, String[] words, Random random)
+            throws DuplicateItemException {
+        Catalog<LibraryItem<String>, String> catalog = new Catalog<>();
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            title.setLength(0);
+            int titleWords = 2 + random.nextInt(4);
+            for (int w = 0; w < titleWords; w++) {
+                if (w > 0) {
+                    title.append(' ');
+                }
+                title.append(pick(words, random));
+            }
+            String author = pick(words, random) + " " + pick(words, random);
+            switch (i % 3) {
+                case 0:
+                    catalog.addItem(new Book(title.toString(), author, "B" + i));
+                    break;
+                case 1:
+                    catalog.addItem(new DVD(title.toString(), author, "D" + i));
+                    break;
+                default:
+                    catalog.addItem(new Magazine(title.toString(), author, "M" + i));
+            }
+        }
+        return catalog;
+    }
+
+    static String[] vocabulary(int count) {
+        String[] words = new String[count];
+        Random random = new Random(7);
+        for (int i = 0; i < count; i++) {
+            char[] letters = new char[3 + random.nextInt(6)];
+            for (int c = 0; c < letters.length; c++) {
+                letters[c] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(letters);
+        }
+        return words;
+    }
+
+    /**
+     * Picks a word with a roughly Zipf-like skew: low indexes are far more
+     * likely, as with real title words.
+     */
+    static String pick(String[] words, Random random) {
+        double u = random.nextDouble();
+        return words[(int) (Math.pow(u, 3) * words.length)];
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk loader for catalog records stored one per line, either as CSV or as
+ * JSON lines. The file is streamed through a FileChannel in large chunks cut
+ * at line boundaries; worker threads parse the chunks in parallel while the
+ * calling thread inserts the parsed batches in file order. Only a bounded
+ * number of chunks are in flight at once, so memory use does not depend on
+ * the size of the file.
+ *
+ * CSV files have the columns type, id, title and author, in that order unless
+ * the first line is a header naming them. A header, recognised by its "id"
+ * column, must name all four, or the import fails before reading any record
+ * rather than guess at the columns it lacks. Fields may be quoted with double
+ * quotes, with "" standing for a quote inside a quoted field; a record may not
+ * span lines. JSON lines files hold one flat object per line with the keys
+ * "type", "id", "title" and "author". The type is Book, DVD or Magazine, in
+ * any case. Blank lines are skipped; anything else that cannot be parsed, and
+ * any record whose ID is already in the catalog, is rejected and counted.
+ */
+class CatalogImporter {
+    private static final int CHUNK_SIZE = 4 << 20;
+    private static final int MAX_SAMPLES = 10;
+    private static final String[] COLUMNS = {"type", "id", "title", "author"};
+
+    /**
+     * What an import did, for reporting back to the user.
+     */
+    static class Report {
+        long rows;
+        long imported;
+        long rejected;
+        long nanos;
+        List<String> samples = new ArrayList<>();
+
+        double rowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("Read %d rows in %.2f s (%.0f rows/sec): %d imported, %d rejected.",
+                    rows, nanos / 1e9, rowsPerSecond(), imported, rejected));
+            for (String sample : samples) {
+                text.append(System.lineSeparator()).append("  ").append(sample);
+            }
+            if (rejected > samples.size()) {
+                text.append(System.lineSeparator()).append("  ...");
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * The result of parsing one chunk. Line numbers in the samples are
+     * relative to the chunk until the chunk is merged into the report.
+     */
+    private static class ParsedChunk {
+        List<LibraryItem<String>> items = new ArrayList<>();
+        long lines;
+        long rejected;
+        List<Long> sampleLines = new ArrayList<>();
+        List<String> sampleReasons = new ArrayList<>();
+
+        void reject(long line, String reason) {
+            rejected++;
+            if (sampleLines.size() < MAX_SAMPLES) {
+                sampleLines.add(line);
+                sampleReasons.add(reason);
+            }
+        }
+    }
+
+    private final boolean json;
+    private final int threads;
+    private int[] columnOrder = {0, 1, 2, 3};
+    private int minFields = COLUMNS.length; // a record needs a field at every column in columnOrder
+
+    /**
+     * @param json    true for JSON lines, false for CSV
+     * @param threads the number of parsing threads
+     */
+    public CatalogImporter(boolean json, int threads) {
+        this.json = json;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Picks the format from the file name: .json, .jsonl and .ndjson files are
+     * read as JSON lines and anything else as CSV.
+     */
+    public static CatalogImporter forFile(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean json = name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".ndjson");
+        return new CatalogImporter(json, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Streams the file into the catalog. The catalog's secondary indexes are
+     * rebuilt once, after the last batch.
+     */
+    public Report importFile(Path file, Catalog<LibraryItem<String>, String> catalog) throws IOException {
+        Report report = new Report();
+        long start = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Deque<Future<ParsedChunk>> inFlight = new ArrayDeque<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            boolean first = true;
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                if (!eof && buffer.hasRemaining()) {
+                    continue;
+                }
+                buffer.flip();
+                int end = eof ? buffer.limit() : lastNewline(buffer) + 1;
+                if (end == 0 && !eof) {
+                    // A single line longer than the buffer: grow it and keep reading
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    larger.put(buffer);
+                    buffer = larger;
+                    continue;
+                }
+                byte[] chunk = new byte[end];
+                buffer.get(chunk);
+                buffer.compact();
+
+                int skip = 0;
+                if (first) {
+                    skip = readHeader(chunk, report);
+                    first = false;
+                }
+                int offset = skip;
+                inFlight.add(workers.submit(() -> parse(chunk, offset)));
+                if (inFlight.size() >= threads * 2) {
+                    insert(inFlight.poll(), catalog, report);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                insert(inFlight.poll(), catalog, report);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        catalog.rebuildIndexes();
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * Consumes a CSV header line if the file starts with one and sets the
+     * column order from it.
+     *
+     * @return the number of bytes to skip at the start of the first chunk
+     * @throws IOException if the header lacks one of the columns
+     */
+    private int readHeader(byte[] chunk, Report report) throws IOException {
+        if (json) {
+            return 0;
+        }
+        int end = 0;
+        while (end < chunk.length && chunk[end] != '\n') {
+            end++;
+        }
+        List<String> fields = splitCsv(new String(chunk, 0, end, StandardCharsets.UTF_8).trim());
+        boolean header = false;
+        for (int f = 0; fields != null && f < fields.size(); f++) {
+            header |= fields.get(f).trim().equalsIgnoreCase("id");
+        }
+        if (!header) {
+            return 0;
+        }
+        report.rows++;
+        int[] order = new int[COLUMNS.length];
+        for (int c = 0; c < COLUMNS.length; c++) {
+            order[c] = -1;
+            for (int f = 0; f < fields.size(); f++) {
+                if (fields.get(f).trim().equalsIgnoreCase(COLUMNS[c])) {
+                    order[c] = f;
+                }
+            }
+            if (order[c] < 0) {
+                throw new IOException("The header has no \"" + COLUMNS[c] + "\" column; it needs "
+                        + String.join(", ", COLUMNS));
+            }
+        }
+        columnOrder = order;
+        for (int column : order) {
+            minFields = Math.max(minFields, column + 1);
+        }
+        return Math.min(end + 1, chunk.length);
+    }
+
+    private void insert(Future<ParsedChunk> future, Catalog<LibraryItem<String>, String> catalog, Report report)
+            throws IOException {
+        ParsedChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed: " + e.getCause(), e.getCause());
+        }
+        long firstLine = report.rows + 1;
+        for (int i = 0; i < chunk.sampleLines.size() && report.samples.size() < MAX_SAMPLES; i++) {
+            report.samples.add("Line " + (firstLine + chunk.sampleLines.get(i)) + ": " + chunk.sampleReasons.get(i));
+        }
+        long[] duplicates = {0};
+        report.imported += catalog.addItems(chunk.items, item -> {
+            duplicates[0]++;
+            if (report.samples.size() < MAX_SAMPLES) {
+                report.samples.add("Duplicate item ID: " + item.getItemID());
+            }
+        });
+        report.rows += chunk.lines;
+        report.rejected += chunk.rejected + duplicates[0];
+    }
+
+    private ParsedChunk parse(byte[] chunk, int offset) {
+        ParsedChunk parsed = new ParsedChunk();
+        int start = offset;
+        while (start < chunk.length) {
+            int end = start;
+            while (end < chunk.length && chunk[end] != '\n') {
+                end++;
+            }
+            int lineEnd = end > start && chunk[end - 1] == '\r' ? end - 1 : end;
+            long line = parsed.lines++;
+            String text = new String(chunk, start, lineEnd - start, StandardCharsets.UTF_8);
+            start = end + 1;
+            if (text.trim().isEmpty()) {
+                continue;
+            }
+            List<String> fields = json ? parseJsonObject(text) : splitCsv(text);
+            if (fields == null || fields.size() < minFields) {
+                parsed.reject(line, json ? "Not a JSON object with type, id, title and author" : "Malformed CSV record");
+                continue;
+            }
+            String type = fields.get(columnOrder[0]);
+            String itemID = fields.get(columnOrder[1]);
+            ItemType itemType = type == null ? null : ItemType.parse(type);
+            if (itemType == null || itemType == ItemType.ITEM) {
+                parsed.reject(line, "Unknown item type: " + type);
+            } else if (itemID == null || itemID.trim().isEmpty()) {
+                parsed.reject(line, "Missing item ID");
+            } else {
+                String title = fields.get(columnOrder[2]);
+                String author = fields.get(columnOrder[3]);
+                parsed.items.add(itemType.create(title == null ? "" : title, author == null ? "" : author, itemID.trim()));
+            }
+        }
+        return parsed;
+    }
+
+    private static int lastNewline(ByteBuffer buffer) {
+        for (int i = buffer.limit() - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Splits one CSV record into fields; returns null if a quote is left open.
+     */
+    static List<String> splitCsv(String line) {
+        List<String> fields = new ArrayList<>(COLUMNS.length);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Reads the type, id, title and author values out of a flat JSON object,
+     * in that order, with null for a missing key. Returns null if the line is
+     * not an object. Non-string values are kept as their literal text.
+     */
+    static List<String> parseJsonObject(String line) {
+        String[] values = new String[COLUMNS.length];
+        int[] pos = {skipSpace(line, 0)};
+        if (pos[0] >= line.length() || line.charAt(pos[0]) != '{') {
+            return null;
+        }
+        pos[0] = skipSpace(line, pos[0] + 1);
+        if (pos[0] < line.length() && line.charAt(pos[0]) == '}') {
+            return null;
+        }
+        while (true) {
+            String key = readJsonString(line, pos);
+            pos[0] = skipSpace(line, pos[0]);
+            if (key == null || pos[0] >= line.length() || line.charAt(pos[0]) != ':') {
+                return null;
+            }
+            pos[0] = skipSpace(line, pos[0] + 1);
+            String value;
+            if (pos[0] < line.length() && line.charAt(pos[0]) == '"') {
+                value = readJsonString(line, pos);
+                if (value == null) {
+                    return null;
+                }
+            } else {
+                int start = pos[0];
+                while (pos[0] < line.length() && ",}".indexOf(line.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = line.substring(start, pos[0]).trim();
+                if (value.equals("null")) {
+                    value = null;
+                }
+            }
+            for (int c = 0; c < COLUMNS.length; c++) {
+                if (COLUMNS[c].equals(key)) {
+                    values[c] = value;
+                }
+            }
+            pos[0] = skipSpace(line, pos[0]);
+            if (pos[0] >= line.length()) {
+                return null;
+            }
+            char c = line.charAt(pos[0]);
+            pos[0] = skipSpace(line, pos[0] + 1);
+            if (c == '}') {
+                break;
+            } else if (c != ',') {
+                return null;
+            }
+        }
+        List<String> fields = new ArrayList<>(COLUMNS.length);
+        for (String value : values) {
+            fields.add(value);
+        }
+        return fields;
+    }
+
+    private static String readJsonString(String line, int[] pos) {
+        if (pos[0] >= line.length() || line.charAt(pos[0]) != '"') {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        int i = pos[0] + 1;
+        while (i < line.length()) {
+            char c = line.charAt(i++);
+            if (c == '"') {
+                pos[0] = i;
+                return text.toString();
+            }
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            if (i >= line.length()) {
+                return null;
+            }
+            char escaped = line.charAt(i++);
+            switch (escaped) {
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 > line.length()) {
+                        return null;
+                    }
+                    try {
+                        text.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    i += 4;
+                    break;
+                default:
+                    text.append(escaped); // \" \\ and \/
+            }
+        }
+        return null;
+    }
+
+    private static int skipSpace(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,394 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Durable storage for a catalog of String-keyed items. Every add and remove is
+ * appended to a write-ahead log and forced to disk before it is acknowledged;
+ * once the log grows long enough the whole catalog is written to a snapshot
+ * and a fresh log is started. Loading reads the newest snapshot and replays
+ * the log written after it.
+ *
+ * Snapshots use the columnar format of MappedCatalog, so a snapshot can
+ * also be served read-only without loading it at all.
+ *
+ * Files are numbered by generation: catalog-000007.snap holds the catalog as
+ * it was when catalog-000007.log was started. A checkpoint writes the next
+ * generation's snapshot under a temporary name, renames it into place, and
+ * only then switches logs and deletes the older generation, so a crash at any
+ * point leaves one complete snapshot and the log that follows it.
+ *
+ * Log records are framed as [length][CRC32][payload]. A record torn by a crash
+ * fails its length or checksum test; replay stops there and the log is cut
+ * back to the last whole record.
+ *
+ * A write or force that fails at run time is handled the same way: the log is
+ * truncated back to the end of the last batch known to be durable, so later
+ * records never land behind torn bytes that replay would stop at, and the
+ * failed records cannot reappear on replay after their callers were told they
+ * failed. If even the truncation fails, the store refuses all further writes.
+ */
+class CatalogStore implements Closeable {
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final int DEFAULT_CHECKPOINT_RECORDS = 100000;
+
+    private final Path directory;
+    private final int checkpointRecords;
+    private long generation = 0;
+    private FileChannel log;
+    private boolean isNew;
+
+    // Group commit: appenders queue their records in pending and one of them
+    // at a time writes and forces everything queued so far on behalf of all.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+    private long failedSeq = 0;
+    private long durableLength = 0; // bytes of the current log known to be on disk
+    private IOException broken;     // set once the log could not be repaired after a failed write
+    private boolean flushing = false;
+    private int logRecords = 0;
+
+    public CatalogStore(Path directory) throws IOException {
+        this(directory, DEFAULT_CHECKPOINT_RECORDS);
+    }
+
+    public CatalogStore(Path directory, int checkpointRecords) throws IOException {
+        this.directory = directory;
+        this.checkpointRecords = checkpointRecords;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Rebuilds the catalog from the newest snapshot and the log that follows it,
+     * and opens that log for appending.
+     */
+    public Catalog<LibraryItem<String>, String> load() throws IOException {
+        Catalog<LibraryItem<String>, String> catalog = new Catalog<>();
+        generation = latestGeneration();
+        isNew = generation < 0;
+        if (isNew) {
+            generation = 0;
+        }
+        Path snapshot = snapshotPath(generation);
+        if (Files.exists(snapshot)) {
+            MappedCatalog items = MappedCatalog.open(snapshot, true);
+            List<LibraryItem<String>> batch = new ArrayList<>(items.size());
+            for (int row = 0; row < items.size(); row++) {
+                batch.add(items.get(row));
+            }
+            catalog.addItems(batch, item -> { });
+        }
+        log = FileChannel.open(logPath(generation), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = replay(catalog);
+        if (validLength < log.size()) {
+            log.truncate(validLength);
+            log.force(false);
+        }
+        log.position(validLength);
+        durableLength = validLength;
+        deleteGenerationsBefore(generation);
+        catalog.rebuildIndexes();
+        return catalog;
+    }
+
+    /**
+     * True if load() found no earlier snapshot or log to restore from.
+     */
+    public boolean isNew() {
+        return isNew;
+    }
+
+    public void logAdd(LibraryItem<String> item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_ADD);
+        writeItem(out, item);
+        append(bytes.toByteArray());
+    }
+
+    public void logRemove(String itemID) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(itemID);
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * True once the current log holds enough records that replaying it would
+     * cost noticeably more than loading a fresh snapshot.
+     */
+    public boolean checkpointDue() {
+        lock.lock();
+        try {
+            return logRecords >= checkpointRecords;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the catalog to a new snapshot and starts an empty log after it.
+     * The caller must make sure no items are added, removed or logged while
+     * the checkpoint runs, so that the snapshot matches the log exactly.
+     */
+    public void checkpoint(Catalog<LibraryItem<String>, String> catalog) throws IOException {
+        long next = generation + 1;
+        Path temporary = directory.resolve("catalog-snapshot.tmp");
+        MappedCatalog.write(temporary, catalog);
+        Files.move(temporary, snapshotPath(next), StandardCopyOption.ATOMIC_MOVE);
+
+        FileChannel nextLog = FileChannel.open(logPath(next), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        syncDirectory(); // makes both the rename and the new log's entry durable
+        lock.lock();
+        try {
+            log.close();
+            log = nextLog;
+            logRecords = 0;
+            durableLength = 0;
+        } finally {
+            lock.unlock();
+        }
+        generation = next;
+        deleteGenerationsBefore(generation);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Queues one record and returns once it is on disk. Whichever caller finds
+     * no flush in progress becomes the leader: it takes every record queued so
+     * far, writes them with a single force, and wakes all callers they cover.
+     * Records that arrive meanwhile form the next batch, so under concurrent
+     * load the cost of each fsync is shared by many mutations.
+     */
+    private void append(byte[] payload) throws IOException {
+        if (payload.length > MAX_RECORD) {
+            throw new IOException("Item too large to log: " + payload.length + " bytes");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        lock.lock();
+        try {
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            long seq = ++appendedSeq;
+            logRecords++;
+
+            while (durableSeq < seq) {
+                if (seq <= failedSeq) {
+                    throw new IOException("Catalog log write failed");
+                }
+                if (broken != null) {
+                    throw new IOException("Catalog log is unusable after an earlier write failure", broken);
+                }
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                flushing = true;
+                ByteBuffer batch = ByteBuffer.wrap(pending.toByteArray());
+                long batchSeq = appendedSeq;
+                pending = new ByteArrayOutputStream();
+                FileChannel channel = log;
+                IOException failure = null;
+                lock.unlock();
+                try {
+                    while (batch.hasRemaining()) {
+                        channel.write(batch);
+                    }
+                    channel.force(false);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    lock.lock();
+                    flushing = false;
+                }
+                if (failure != null) {
+                    failedSeq = batchSeq;
+                    discardFailedBatch(channel, failure);
+                    flushed.signalAll();
+                    throw failure;
+                }
+                durableSeq = batchSeq;
+                durableLength += batch.capacity();
+                flushed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cuts the log back to its last durable batch after a failed write or
+     * force, or marks the store broken if that fails too. Called with the lock
+     * held and no flush in progress.
+     */
+    private void discardFailedBatch(FileChannel channel, IOException failure) {
+        try {
+            channel.truncate(durableLength);
+            channel.position(durableLength);
+            channel.force(false);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            broken = failure;
+        }
+    }
+
+    /**
+     * Forces the directory itself to disk, so renamed and newly created files
+     * survive a crash. Not every platform can open a directory for this;
+     * there the rename is left to the file system's own ordering.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // e.g. Windows, where directories cannot be opened as channels
+        }
+    }
+
+    /**
+     * Applies every whole record in the log to the catalog.
+     *
+     * @return the length of the log up to the end of the last whole record
+     */
+    private long replay(Catalog<LibraryItem<String>, String> catalog) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(log.position(0)), 1 << 16));
+        long position = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int length;
+            int checksum;
+            byte[] payload;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD) {
+                    break;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(catalog, new DataInputStream(new ByteArrayInputStream(payload)));
+            position += 8 + length;
+            logRecords++;
+        }
+        return position;
+    }
+
+    private static void apply(Catalog<LibraryItem<String>, String> catalog, DataInputStream record)
+            throws IOException {
+        byte op = record.readByte();
+        try {
+            if (op == OP_ADD) {
+                catalog.addItem(readItem(record));
+            } else if (op == OP_REMOVE) {
+                catalog.removeItem(record.readUTF());
+            }
+        } catch (DuplicateItemException | ItemNotFoundException e) {
+            // Cannot happen for a log written by this class; replay stays idempotent
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, LibraryItem<String> item) throws IOException {
+        out.writeByte(ItemType.of(item).ordinal());
+        out.writeUTF(item.getItemID());
+        out.writeUTF(item.getTitle());
+        out.writeUTF(item.getAuthor());
+    }
+
+    private static LibraryItem<String> readItem(DataInputStream in) throws IOException {
+        ItemType type = ItemType.values()[in.readByte()];
+        String itemID = in.readUTF();
+        String title = in.readUTF();
+        String author = in.readUTF();
+        return type.create(title, author, itemID);
+    }
+
+    private long latestGeneration() throws IOException {
+        long latest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "catalog-*.{snap,log}")) {
+            for (Path file : files) {
+                latest = Math.max(latest, generationOf(file));
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Removes files left behind by checkpoints, including any a crash kept
+     * from being cleaned up at the time.
+     */
+    private void deleteGenerationsBefore(long gen) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "catalog-*.{snap,log}")) {
+            for (Path file : files) {
+                long fileGeneration = generationOf(file);
+                if (fileGeneration >= 0 && fileGeneration < gen) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        // Still mapped on a platform that forbids deleting it; retried next time
+                    }
+                }
+            }
+        }
+    }
+
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(8, name.indexOf('.')));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1; // Not one of ours
+        }
+    }
+
+    private Path snapshotPath(long gen) {
+        return directory.resolve(String.format("catalog-%06d.snap", gen));
+    }
+
+    private Path logPath(long gen) {
+        return directory.resolve(String.format("catalog-%06d.log", gen));
+    }
+}
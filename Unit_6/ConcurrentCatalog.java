@@ -0,0 +1,171 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe catalog for serving from many threads at once. Items are spread
+ * over independent Catalog stripes by ID hash, each guarded by its own
+ * StampedLock, so writers to different stripes never contend. ID lookups skip
+ * the locks entirely by reading a ConcurrentHashMap that writers update while
+ * holding the stripe lock; an item becomes visible to getItem at the moment it
+ * is put into that map and disappears at the moment it is removed.
+ * displayCatalog is weakly consistent: it never blocks writers and reflects
+ * some, but not necessarily all, changes made while it runs.
+ *
+ * Catalog's queries bring its indexes up to date first, which writes to the
+ * stripe, so a query only runs under the read lock once the stripe has nothing
+ * left to index; otherwise it takes the write lock and rebuilds first.
+ */
+class ConcurrentCatalog<T extends LibraryItem<ID>, ID> {
+    private final ConcurrentHashMap<ID, T> items = new ConcurrentHashMap<>();
+    private final Catalog<T, ID>[] stripes;
+    private final StampedLock[] locks;
+
+    public ConcurrentCatalog() {
+        this(64);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentCatalog(int stripeCount) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount - 1) << 1);
+        stripes = (Catalog<T, ID>[]) new Catalog[count];
+        locks = new StampedLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Catalog<>();
+            locks[i] = new StampedLock();
+        }
+    }
+
+    private int stripeFor(ID itemID) {
+        int h = itemID == null ? 0 : itemID.hashCode();
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    public void addItem(T item) throws DuplicateItemException {
+        int stripe = stripeFor(item.getItemID());
+        long stamp = locks[stripe].writeLock();
+        try {
+            stripes[stripe].addItem(item);
+            items.put(item.getItemID(), item);
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+    }
+
+    public void removeItem(ID itemID) throws ItemNotFoundException {
+        int stripe = stripeFor(itemID);
+        long stamp = locks[stripe].writeLock();
+        try {
+            stripes[stripe].removeItem(itemID);
+            items.remove(itemID);
+        } finally {
+            locks[stripe].unlockWrite(stamp);
+        }
+    }
+
+    public T getItem(ID itemID) throws ItemNotFoundException {
+        T item = itemID == null ? null : items.get(itemID);
+        if (item == null) {
+            throw new ItemNotFoundException("No item found with ID: " + itemID);
+        }
+        return item;
+    }
+
+    public List<T> findByTitle(String title) {
+        return collect(stripe -> stripe.findByTitle(title));
+    }
+
+    public List<T> findByTitlePrefix(String prefix) {
+        return collect(stripe -> stripe.findByTitlePrefix(prefix));
+    }
+
+    public List<T> findByAuthor(String author) {
+        return collect(stripe -> stripe.findByAuthor(author));
+    }
+
+    public List<T> findByAuthorPrefix(String prefix) {
+        return collect(stripe -> stripe.findByAuthorPrefix(prefix));
+    }
+
+    /**
+     * Ranked keyword search. Each stripe ranks its own items and the per-stripe
+     * top k lists are merged by score; because IDs are spread evenly over the
+     * stripes, their term statistics closely match those of the whole catalog.
+     */
+    public List<T> search(String query, int k) {
+        List<SearchHit<T>> hits = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            Catalog<T, ID> stripe = stripes[i];
+            hits.addAll(underReadLock(i, () -> stripe.searchHits(query, k)));
+        }
+        hits.sort((a, b) -> Double.compare(b.score, a.score));
+        List<T> results = new ArrayList<>();
+        for (int i = 0; i < hits.size() && i < k; i++) {
+            results.add(hits.get(i).item);
+        }
+        return results;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public void displayCatalog() {
+        if (items.isEmpty()) {
+            System.out.println("The catalog is empty right now.");
+            return;
+        }
+        // One buffered writer for the whole listing rather than a flush per line
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            StringBuilder line = new StringBuilder(128);
+            for (T item : items.values()) {
+                line.setLength(0);
+                item.formatTo(line).append(System.lineSeparator());
+                out.append(line);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Unable to display the catalog: " + e.getMessage());
+        }
+    }
+
+    private List<T> collect(Function<Catalog<T, ID>, List<T>> query) {
+        List<T> results = new ArrayList<>();
+        for (int i = 0; i < stripes.length; i++) {
+            Catalog<T, ID> stripe = stripes[i];
+            results.addAll(underReadLock(i, () -> query.apply(stripe)));
+        }
+        return results;
+    }
+
+    /**
+     * Runs a query on one stripe under its read lock, or under its write lock
+     * if the stripe's indexes need rebuilding first.
+     */
+    private <R> R underReadLock(int stripe, Supplier<R> query) {
+        StampedLock lock = locks[stripe];
+        long stamp = lock.readLock();
+        try {
+            if (stripes[stripe].needsIndexing()) {
+                long write = lock.tryConvertToWriteLock(stamp);
+                if (write == 0L) {
+                    lock.unlockRead(stamp);
+                    write = lock.writeLock();
+                }
+                stamp = write;
+                stripes[stripe].rebuildIndexes();
+            }
+            return query.get();
+        } finally {
+            lock.unlock(stamp);
+        }
+    }
+}
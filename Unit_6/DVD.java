@@ -0,0 +1,5 @@
+class DVD extends LibraryItem<String> {
+    public DVD(String title, String author, String itemID) {
+        super(title, author, itemID);
+    }
+}
@@ -0,0 +1,7 @@
+class DuplicateItemException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public DuplicateItemException(String msg) {
+        super(msg);
+    }
+}
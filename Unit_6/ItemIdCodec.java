@@ -0,0 +1,71 @@
+/**
+ * Packs structured item IDs such as "B001" or "DVD12345" into a long: up to
+ * three upper-case letters followed by one to twelve digits. The number of
+ * digits is kept, so "B001" and "B1" stay distinct, and unpack() gives back
+ * the original string.
+ * <pre>
+ *   bits 44-58  letters, 5 bits each (A=1 ... Z=26, 0 = no letter)
+ *   bits 40-43  digit count
+ *   bits  0-39  numeric value
+ * </pre>
+ */
+class ItemIdCodec {
+    private static final int MAX_LETTERS = 3;
+    private static final int MAX_DIGITS = 12;
+
+    public static boolean isPackable(String itemID) {
+        if (itemID == null) {
+            return false;
+        }
+        int letters = 0;
+        while (letters < itemID.length() && itemID.charAt(letters) >= 'A' && itemID.charAt(letters) <= 'Z') {
+            letters++;
+        }
+        int digits = itemID.length() - letters;
+        if (letters > MAX_LETTERS || digits < 1 || digits > MAX_DIGITS) {
+            return false;
+        }
+        for (int i = letters; i < itemID.length(); i++) {
+            if (itemID.charAt(i) < '0' || itemID.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the ID does not have the packable shape
+     */
+    public static long pack(String itemID) {
+        if (!isPackable(itemID)) {
+            throw new IllegalArgumentException("Item ID cannot be packed: " + itemID);
+        }
+        long letters = 0;
+        int i = 0;
+        for (; i < itemID.length() && itemID.charAt(i) >= 'A'; i++) {
+            letters = letters << 5 | (itemID.charAt(i) - 'A' + 1);
+        }
+        long value = 0;
+        int digits = itemID.length() - i;
+        for (; i < itemID.length(); i++) {
+            value = value * 10 + (itemID.charAt(i) - '0');
+        }
+        return letters << 44 | (long) digits << 40 | value;
+    }
+
+    public static String unpack(long packed) {
+        StringBuilder itemID = new StringBuilder(MAX_LETTERS + MAX_DIGITS);
+        for (int shift = 5 * (MAX_LETTERS - 1); shift >= 0; shift -= 5) {
+            int letter = (int) (packed >>> (44 + shift)) & 0x1F;
+            if (letter != 0) {
+                itemID.append((char) ('A' + letter - 1));
+            }
+        }
+        int digits = (int) (packed >>> 40) & 0xF;
+        String value = Long.toString(packed & 0xFFFFFFFFFFL);
+        for (int pad = value.length(); pad < digits; pad++) {
+            itemID.append('0');
+        }
+        return itemID.append(value).toString();
+    }
+}
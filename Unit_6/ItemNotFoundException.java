@@ -0,0 +1,7 @@
+class ItemNotFoundException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ItemNotFoundException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * The concrete kinds of library item, used wherever items are written out or
+ * read back in by type rather than by Java class.
+ */
+enum ItemType {
+    BOOK("Book"), DVD("DVD"), MAGAZINE("Magazine"), ITEM("LibraryItem");
+
+    private final String label;
+
+    ItemType(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public static ItemType of(LibraryItem<?> item) {
+        if (item instanceof Book) {
+            return BOOK;
+        } else if (item instanceof DVD) {
+            return DVD;
+        } else if (item instanceof Magazine) {
+            return MAGAZINE;
+        }
+        return ITEM;
+    }
+
+    /**
+     * Looks a type up by its label, ignoring case; returns null if unknown.
+     */
+    public static ItemType parse(String label) {
+        for (ItemType type : values()) {
+            if (type.label.equalsIgnoreCase(label.trim())) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    public LibraryItem<String> create(String title, String author, String itemID) {
+        switch (this) {
+            case BOOK:
+                return new Book(title, author, itemID);
+            case DVD:
+                return new DVD(title, author, itemID);
+            case MAGAZINE:
+                return new Magazine(title, author, itemID);
+            default:
+                return new LibraryItem<>(title, author, itemID);
+        }
+    }
+}
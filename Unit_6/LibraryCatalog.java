@@ -5,112 +5,42 @@
  * retrieving items, and viewing the catalog through a simple CLI, with 
  * proper error handling for operations like removing non-existent items.
  */
-import java.util.ArrayList;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Scanner;
 
-class ItemNotFoundException extends Exception {
-    public ItemNotFoundException(String msg) {
-        super(msg);
-    }
-}
-
-class LibraryItem<T> {
-    private String title;
-    private String author;
-    private T itemID;
-
-    public LibraryItem(String title, String author, T itemID) {
-        this.title = title;
-        this.author = author;
-        this.itemID = itemID;
-    }
-
-    public T getItemID() {
-        return itemID;
-    }
-
-    public String getTitle() {
-        return title;
-    }
-
-    public String getAuthor() {
-        return author;
-    }
-
-    @Override
-    public String toString() {
-        return getClass().getSimpleName() + ": ItemID: " + itemID + ", Title: " + title + ", Author: " + author;
-    }
-}
-
-class Book extends LibraryItem<String> {
-    public Book(String title, String author, String itemID) {
-        super(title, author, itemID);
-    }
-}
-
-class DVD extends LibraryItem<String> {
-    public DVD(String title, String author, String itemID) {
-        super(title, author, itemID);
-    }
-}
-
-class Magazine extends LibraryItem<String> {
-    public Magazine(String title, String author, String itemID) {
-        super(title, author, itemID);
-    }
-}
-
-class Catalog<T extends LibraryItem<ID>, ID> {
-    private List<T> libraryItems = new ArrayList<>();
-
-    public void addItem(T item) {
-        libraryItems.add(item);
-    }
-
-    public void removeItem(ID itemID) throws ItemNotFoundException {
-        boolean found = false;
-        for (int i = 0; i < libraryItems.size(); i++) {
-            if (libraryItems.get(i).getItemID().equals(itemID)) {
-                libraryItems.remove(i);
-                found = true;
-                break;
-            }
-        }
-        if (!found) {
-            throw new ItemNotFoundException("No item found with ID: " + itemID);
-        }
-    }
+public class LibraryCatalog {
+    private static final String DATA_DIRECTORY = "catalog-data"; // Where the catalog is persisted
+    private static final int PAGE_SIZE = 20;                     // Items shown per page when viewing
 
-    public T getItem(ID itemID) throws ItemNotFoundException {
-        for (T item : libraryItems) {
-            if (item.getItemID().equals(itemID)) {
-                return item;
+    public static void main(String[] args) {
+        CatalogStore store;
+        Catalog<LibraryItem<String>, String> catalog;
+        try {
+            store = new CatalogStore(Paths.get(DATA_DIRECTORY));
+            long start = System.nanoTime();
+            catalog = store.load();
+            if (catalog.size() > 0) {
+                System.out.println("Loaded " + catalog.size() + " items in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms.");
             }
-        }
-        throw new ItemNotFoundException("No item found with ID: " + itemID);
-    }
-
-    public void displayCatalog() {
-        if (libraryItems.isEmpty()) {
-            System.out.println("The catalog is empty right now.");
+        } catch (IOException e) {
+            System.out.println("Unable to open the catalog data: " + e.getMessage());
             return;
         }
-        for (T item : libraryItems) {
-            System.out.println(item);
-        }
-    }
-}
-
-public class LibraryCatalog {
-    public static void main(String[] args) {
-        Catalog<LibraryItem<String>, String> catalog = new Catalog<>();
 
-        // Adding some sample items for testing
-        catalog.addItem(new Book("Java Programming", "Author1", "B001"));
-        catalog.addItem(new DVD("Inception", "Director1", "D001"));
-        catalog.addItem(new Magazine("Tech Monthly", "Editor1", "M001"));
+        // Adding some sample items for testing the first time the catalog is created
+        if (store.isNew()) {
+            addAndLog(catalog, store, new Book("Java Programming", "Author1", "B001"));
+            addAndLog(catalog, store, new DVD("Inception", "Director1", "D001"));
+            addAndLog(catalog, store, new Magazine("Tech Monthly", "Editor1", "M001"));
+        }
 
         Scanner scanner = new Scanner(System.in);
         int choice = 0;
@@ -120,7 +50,9 @@ public class LibraryCatalog {
             System.out.println("2. Remove an item");
             System.out.println("3. View the catalog");
             System.out.println("4. Get item details");
-            System.out.println("5. Exit");
+            System.out.println("5. Search by title or author");
+            System.out.println("6. Import items from a CSV or JSON lines file");
+            System.out.println("7. Exit");
             System.out.print("Enter your choice: ");
             try {
                 choice = scanner.nextInt();
@@ -166,21 +98,52 @@ public class LibraryCatalog {
                     } else {
                         newItem = new Magazine(title, author, itemID);
                     }
-                    catalog.addItem(newItem);
-                    System.out.println("Item added successfully.");
+                    if (addAndLog(catalog, store, newItem)) {
+                        System.out.println("Item added successfully.");
+                    }
                     break;
                 case 2:
                     System.out.print("Enter item ID to remove: ");
                     String removeID = scanner.nextLine();
                     try {
+                        LibraryItem<String> removed = catalog.getItem(removeID);
                         catalog.removeItem(removeID);
-                        System.out.println("Item removed successfully.");
-                    } catch (ItemNotFoundException e) {
+                        try {
+                            store.logRemove(removeID);
+                            System.out.println("Item removed successfully.");
+                        } catch (IOException e) {
+                            catalog.addItem(removed);
+                            System.out.println("Unable to save the change: " + e.getMessage());
+                        }
+                    } catch (ItemNotFoundException | DuplicateItemException e) {
                         System.out.println(e.getMessage());
                     }
+                    checkpointIfDue(catalog, store);
                     break;
                 case 3:
-                    catalog.displayCatalog();
+                    if (catalog.size() == 0) {
+                        System.out.println("The catalog is empty right now.");
+                        break;
+                    }
+                    Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+                    int offset = 0;
+                    try {
+                        while (true) {
+                            int shown = catalog.displayPage(offset, PAGE_SIZE, out);
+                            out.write(String.format("-- Items %d-%d of %d --%n", offset + 1, offset + shown, catalog.size()));
+                            out.flush();
+                            offset += shown;
+                            if (shown == 0 || offset >= catalog.size()) {
+                                break;
+                            }
+                            System.out.print("Press Enter for the next page, or q to stop: ");
+                            if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                                break;
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Unable to display the catalog: " + e.getMessage());
+                    }
                     break;
                 case 4:
                     System.out.print("Enter item ID to retrieve: ");
@@ -193,12 +156,110 @@ public class LibraryCatalog {
                     }
                     break;
                 case 5:
+                    System.out.print("Search by (a:Title, b:Author, c:Keywords): ");
+                    String field = scanner.nextLine().trim().toLowerCase();
+                    if (!field.equals("a") && !field.equals("b") && !field.equals("c")) {
+                        System.out.println("Invalid field. Please enter a, b, or c.");
+                        break;
+                    }
+                    if (field.equals("c")) {
+                        System.out.print("Enter keywords: ");
+                    } else {
+                        System.out.print("Enter search text (end with * for a prefix search): ");
+                    }
+                    String query = scanner.nextLine().trim();
+                    boolean prefix = query.endsWith("*");
+                    if (prefix) {
+                        query = query.substring(0, query.length() - 1);
+                    }
+                    List<LibraryItem<String>> matches;
+                    if (field.equals("c")) {
+                        matches = catalog.search(query, 10);
+                    } else if (field.equals("a")) {
+                        matches = prefix ? catalog.findByTitlePrefix(query) : catalog.findByTitle(query);
+                    } else {
+                        matches = prefix ? catalog.findByAuthorPrefix(query) : catalog.findByAuthor(query);
+                    }
+                    if (matches.isEmpty()) {
+                        System.out.println("No matching items found.");
+                    }
+                    for (LibraryItem<String> match : matches) {
+                        System.out.println(match);
+                    }
+                    break;
+                case 6:
+                    System.out.print("Enter file path: ");
+                    String importPath = scanner.nextLine().trim();
+                    int sizeBeforeImport = catalog.size();
+                    try {
+                        Path importFile = Paths.get(importPath);
+                        CatalogImporter.Report report = CatalogImporter.forFile(importFile).importFile(importFile, catalog);
+                        System.out.println(report);
+                    } catch (IOException | InvalidPathException e) {
+                        System.out.println("Unable to import " + importPath + ": " + e.getMessage());
+                    } finally {
+                        // One snapshot records the whole import instead of a log record per item. An import that
+                        // failed partway has already added its earlier rows, so they are recorded the same way.
+                        if (catalog.size() != sizeBeforeImport) {
+                            checkpoint(catalog, store);
+                        }
+                    }
+                    break;
+                case 7:
                     System.out.println("Exiting the program.");
                     break;
                 default:
                     System.out.println("Invalid choice, try again.");
             }
-        } while (choice != 5);
+        } while (choice != 7);
         scanner.close();
+        try {
+            store.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close the catalog data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds an item to the catalog and records it in the log, undoing the add if
+     * it cannot be made durable.
+     *
+     * @return true if the item was added and saved
+     */
+    private static boolean addAndLog(Catalog<LibraryItem<String>, String> catalog, CatalogStore store,
+            LibraryItem<String> item) {
+        try {
+            catalog.addItem(item);
+        } catch (DuplicateItemException e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+        try {
+            store.logAdd(item);
+        } catch (IOException e) {
+            try {
+                catalog.removeItem(item.getItemID());
+            } catch (ItemNotFoundException ignored) {
+                // Just added, so it is there
+            }
+            System.out.println("Unable to save the item: " + e.getMessage());
+            return false;
+        }
+        checkpointIfDue(catalog, store);
+        return true;
+    }
+
+    private static void checkpointIfDue(Catalog<LibraryItem<String>, String> catalog, CatalogStore store) {
+        if (store.checkpointDue()) {
+            checkpoint(catalog, store);
+        }
+    }
+
+    private static void checkpoint(Catalog<LibraryItem<String>, String> catalog, CatalogStore store) {
+        try {
+            store.checkpoint(catalog);
+        } catch (IOException e) {
+            System.out.println("Unable to write a catalog snapshot: " + e.getMessage());
+        }
     }
 }
\ No newline at end of file
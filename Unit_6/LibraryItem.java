@@ -0,0 +1,44 @@
+class LibraryItem<T> {
+    private String title;
+    private String author;
+    private T itemID;
+
+    public LibraryItem(String title, String author, T itemID) {
+        this.title = title;
+        this.author = author;
+        this.itemID = itemID;
+    }
+
+    public T getItemID() {
+        return itemID;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    private static final ClassValue<String> TYPE_NAMES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            return type.getSimpleName();
+        }
+    };
+
+    /**
+     * Appends the same text as toString() to the builder without creating any
+     * intermediate strings, for printing many items through one buffer.
+     */
+    public StringBuilder formatTo(StringBuilder text) {
+        return text.append(TYPE_NAMES.get(getClass())).append(": ItemID: ").append(itemID)
+                .append(", Title: ").append(title).append(", Author: ").append(author);
+    }
+
+    @Override
+    public String toString() {
+        return formatTo(new StringBuilder(64)).toString();
+    }
+}
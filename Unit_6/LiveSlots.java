@@ -0,0 +1,47 @@
+import java.util.Arrays;
+
+/**
+ * Counts live slots in a Catalog with a Fenwick tree, so the slot holding the
+ * n-th live item can be found in O(log n) despite tombstones. Slots are only
+ * ever appended or cleared, matching how the catalog uses them.
+ */
+class LiveSlots {
+    private int[] tree = new int[17]; // 1-based
+    private int size = 0;
+
+    public void append() {
+        size++;
+        if (size >= tree.length) {
+            tree = Arrays.copyOf(tree, tree.length * 2);
+        }
+        // A new node covers (size - lowbit, size]; all but its own slot are live counts already in the tree
+        int count = 1;
+        int lowbit = size & -size;
+        for (int child = size - 1; child > size - lowbit; child -= child & -child) {
+            count += tree[child];
+        }
+        tree[size] = count;
+    }
+
+    public void clear(int slot) {
+        for (int i = slot + 1; i <= size; i += i & -i) {
+            tree[i]--;
+        }
+    }
+
+    /**
+     * Returns the slot of the live item at the given rank, counting from 0.
+     */
+    public int select(int rank) {
+        int position = 0;
+        int remaining = rank + 1;
+        for (int step = Integer.highestOneBit(Math.max(1, size)); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= size && tree[next] < remaining) {
+                position = next;
+                remaining -= tree[next];
+            }
+        }
+        return position; // the 1-based index is position + 1, so position is the 0-based slot
+    }
+}
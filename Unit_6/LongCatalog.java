@@ -0,0 +1,155 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Catalog keyed by primitive long IDs. Items sit in slots as in Catalog, and a
+ * LongIntHashMap maps each ID to its slot, so the lookup path neither boxes
+ * the ID nor dispatches to equals(), and the index costs two array cells per
+ * item instead of a hash map entry and a boxed Integer.
+ *
+ * The ID of each item is taken from it by a key function given at
+ * construction, along with one that turns a key back into the ID for error
+ * messages; withPackedIds() builds both for the usual String IDs such as
+ * "B001" through ItemIdCodec.
+ */
+class LongCatalog<T extends LibraryItem<?>> {
+    private final ToLongFunction<? super T> idOf;
+    private final LongFunction<String> idName;
+    private Object[] items = new Object[16];
+    private int used = 0;
+    private int tombstones = 0;
+    private LongIntHashMap slotsById = new LongIntHashMap();
+
+    public LongCatalog(ToLongFunction<? super T> idOf) {
+        this(idOf, Long::toString);
+    }
+
+    /**
+     * @param idName gives the ID a key was made from, for messages
+     */
+    public LongCatalog(ToLongFunction<? super T> idOf, LongFunction<String> idName) {
+        this.idOf = idOf;
+        this.idName = idName;
+    }
+
+    /**
+     * A catalog of String-keyed items whose IDs are packed into longs. Adding
+     * an item whose ID has another shape throws IllegalArgumentException.
+     */
+    public static <T extends LibraryItem<String>> LongCatalog<T> withPackedIds() {
+        return new LongCatalog<>(item -> ItemIdCodec.pack(item.getItemID()), ItemIdCodec::unpack);
+    }
+
+    public void addItem(T item) throws DuplicateItemException {
+        long itemID = idOf.applyAsLong(item);
+        if (slotsById.get(itemID) >= 0) {
+            throw new DuplicateItemException("An item already exists with ID: " + item.getItemID());
+        }
+        if (used == items.length) {
+            items = Arrays.copyOf(items, items.length * 2);
+        }
+        slotsById.put(itemID, used);
+        items[used++] = item;
+    }
+
+    public void removeItem(long itemID) throws ItemNotFoundException {
+        int slot = slotsById.remove(itemID);
+        if (slot < 0) {
+            throw new ItemNotFoundException("No item found with ID: " + idName.apply(itemID));
+        }
+        items[slot] = null;
+        tombstones++;
+        // Reclaim the dead slots once they make up more than half of the array
+        if (tombstones > 16 && tombstones * 2 > used) {
+            compact();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getItem(long itemID) throws ItemNotFoundException {
+        int slot = slotsById.get(itemID);
+        if (slot < 0) {
+            throw new ItemNotFoundException("No item found with ID: " + idName.apply(itemID));
+        }
+        return (T) items[slot];
+    }
+
+    public int size() {
+        return slotsById.size();
+    }
+
+    /**
+     * Visits every item in the order it was added.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachItem(Consumer<? super T> action) {
+        for (int slot = 0; slot < used; slot++) {
+            if (items[slot] != null) {
+                action.accept((T) items[slot]);
+            }
+        }
+    }
+
+    /**
+     * Writes up to limit items starting at the given position to out, one per
+     * line, in the order they were added. Until something is removed the
+     * position is a slot number; after that, reaching it walks the slots
+     * before it, until the next compaction.
+     *
+     * @return the number of items written
+     */
+    @SuppressWarnings("unchecked")
+    public int displayPage(int offset, int limit, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        // With no tombstones every slot below used holds an item
+        int skipped = tombstones == 0 ? Math.max(0, offset) : 0;
+        int written = 0;
+        for (int slot = skipped; slot < used && written < limit; slot++) {
+            if (items[slot] == null || skipped++ < offset) {
+                continue;
+            }
+            line.setLength(0);
+            ((T) items[slot]).formatTo(line).append(System.lineSeparator());
+            out.append(line);
+            written++;
+        }
+        return written;
+    }
+
+    public void displayCatalog() {
+        if (size() == 0) {
+            System.out.println("The catalog is empty right now.");
+            return;
+        }
+        // One buffered writer for the whole listing rather than a flush per line
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            displayPage(0, size(), out);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Unable to display the catalog: " + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void compact() {
+        Object[] live = new Object[Math.max(16, size() * 2)];
+        int count = 0;
+        for (int slot = 0; slot < used; slot++) {
+            if (items[slot] != null) {
+                live[count] = items[slot];
+                slotsById.put(idOf.applyAsLong((T) items[slot]), count);
+                count++;
+            }
+        }
+        items = live;
+        used = count;
+        tombstones = 0;
+    }
+}
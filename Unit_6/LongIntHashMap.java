@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from long keys to non-negative int values, stored
+ * in two parallel primitive arrays. Lookups never box the key or call
+ * equals(); collisions are resolved by linear probing and removals shift the
+ * following entries back, so no tombstones build up in the table.
+ */
+class LongIntHashMap {
+    private static final int MISSING = -1;
+
+    private long[] keys;
+    private int[] values; // MISSING marks a free cell
+    private int mask;
+    private int size = 0;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        // Finalizer from MurmurHash3: spreads sequential IDs across the table
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value for the key, or -1 if the key is absent.
+     */
+    public int get(long key) {
+        for (int i = hash(key) & mask; values[i] != MISSING; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * Maps the key to a value, which must not be negative.
+     *
+     * @return the previous value, or -1 if the key was absent
+     */
+    public int put(long key, int value) {
+        int i = hash(key) & mask;
+        for (; values[i] != MISSING; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+        return MISSING;
+    }
+
+    /**
+     * @return the removed value, or -1 if the key was absent
+     */
+    public int remove(long key) {
+        int i = hash(key) & mask;
+        while (values[i] != MISSING && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == MISSING) {
+            return MISSING;
+        }
+        int removed = values[i];
+        size--;
+        // Move back any later entry in the probe run that would otherwise be cut off from its home cell
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != MISSING; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = MISSING;
+        return removed;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != MISSING) {
+                int j = hash(oldKeys[i]) & mask;
+                while (values[j] != MISSING) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
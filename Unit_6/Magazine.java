@@ -0,0 +1,5 @@
+class Magazine extends LibraryItem<String> {
+    public Magazine(String title, String author, String itemID) {
+        super(title, author, itemID);
+    }
+}
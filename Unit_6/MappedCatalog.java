@@ -0,0 +1,380 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Read-only catalog served straight from a memory-mapped columnar snapshot.
+ * Opening one maps the file and reads its header, nothing more; items only
+ * become LibraryItem objects when they are asked for, so a large catalog
+ * costs no heap while it sits unused and is ready as soon as it is mapped.
+ *
+ * The file holds one column per field rather than one record per item:
+ * <pre>
+ *   header   magic, version, item count, author count, section positions, body CRC32
+ *   types    one byte per item: the ItemType ordinal
+ *   IDs      UTF-8 bytes of every ID back to back, plus count+1 int offsets
+ *   titles   UTF-8 bytes of every title back to back, plus count+1 int offsets
+ *   authors  one int per item indexing a dictionary of the distinct authors,
+ *            which is stored like the titles
+ *   order    item numbers sorted by ID bytes, for binary search by ID
+ * </pre>
+ * Items are numbered in the order they were added to the catalog. All ints are
+ * big-endian and every int section starts on a four-byte boundary. Mapping
+ * limits a snapshot to 2 GB.
+ */
+class MappedCatalog {
+    private static final int MAGIC = 0x4C435332; // "LCS2"
+    private static final int VERSION = 1;
+    private static final int TYPES = 0;
+    private static final int ID_OFFSETS = 1;
+    private static final int ID_BYTES = 2;
+    private static final int TITLE_OFFSETS = 3;
+    private static final int TITLE_BYTES = 4;
+    private static final int AUTHOR_CODES = 5;
+    private static final int DICT_OFFSETS = 6;
+    private static final int DICT_BYTES = 7;
+    private static final int ID_ORDER = 8;
+    private static final int SECTIONS = 9;
+    private static final int HEADER_SIZE = 16 + 4 * SECTIONS + 4;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int[] sections = new int[SECTIONS];
+
+    private MappedCatalog(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a columnar catalog snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported catalog snapshot version " + buffer.getInt(4));
+        }
+        count = buffer.getInt(8);
+        for (int i = 0; i < SECTIONS; i++) {
+            sections[i] = buffer.getInt(16 + 4 * i);
+        }
+    }
+
+    /**
+     * Maps a snapshot file for reading.
+     *
+     * @param verify whether to check the body checksum first, which reads the
+     *               whole file once; skip it to serve a trusted file instantly
+     */
+    public static MappedCatalog open(Path path, boolean verify) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Catalog snapshot larger than 2 GB: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        MappedCatalog catalog = new MappedCatalog(buffer);
+        if (verify) {
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.position(HEADER_SIZE);
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(HEADER_SIZE - 4)) {
+                throw new IOException("Catalog snapshot checksum mismatch: " + path);
+            }
+        }
+        return catalog;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Materializes the item stored at the given position.
+     */
+    public LibraryItem<String> get(int row) {
+        ItemType type = ItemType.values()[buffer.get(sections[TYPES] + row)];
+        return type.create(getTitle(row), getAuthor(row), getItemID(row));
+    }
+
+    public String getItemID(int row) {
+        return string(sections[ID_OFFSETS], sections[ID_BYTES], row);
+    }
+
+    public String getTitle(int row) {
+        return string(sections[TITLE_OFFSETS], sections[TITLE_BYTES], row);
+    }
+
+    public String getAuthor(int row) {
+        int code = buffer.getInt(sections[AUTHOR_CODES] + 4 * row);
+        return string(sections[DICT_OFFSETS], sections[DICT_BYTES], code);
+    }
+
+    /**
+     * Finds an item by ID with a binary search over the sorted ID order,
+     * comparing the stored bytes in place.
+     */
+    public LibraryItem<String> getItem(String itemID) throws ItemNotFoundException {
+        byte[] key = itemID.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int row = buffer.getInt(sections[ID_ORDER] + 4 * mid);
+            int cmp = compareId(row, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return get(row);
+            }
+        }
+        throw new ItemNotFoundException("No item found with ID: " + itemID);
+    }
+
+    public void forEachItem(Consumer<? super LibraryItem<String>> action) {
+        for (int row = 0; row < count; row++) {
+            action.accept(get(row));
+        }
+    }
+
+    /**
+     * Appends the same text as the item's toString() to the builder, straight
+     * from the mapped columns, without materializing the item.
+     */
+    public StringBuilder formatTo(int row, StringBuilder text) {
+        text.append(ItemType.values()[buffer.get(sections[TYPES] + row)].getLabel()).append(": ItemID: ");
+        appendString(sections[ID_OFFSETS], sections[ID_BYTES], row, text).append(", Title: ");
+        appendString(sections[TITLE_OFFSETS], sections[TITLE_BYTES], row, text).append(", Author: ");
+        int code = buffer.getInt(sections[AUTHOR_CODES] + 4 * row);
+        return appendString(sections[DICT_OFFSETS], sections[DICT_BYTES], code, text);
+    }
+
+    /**
+     * Writes the items at positions offset to offset + limit - 1 to out, one
+     * per line.
+     *
+     * @return the number of items written
+     */
+    public int displayPage(int offset, int limit, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        int written = 0;
+        for (int row = Math.max(0, offset); row < count && written < limit; row++) {
+            line.setLength(0);
+            formatTo(row, line).append(System.lineSeparator());
+            out.append(line);
+            written++;
+        }
+        return written;
+    }
+
+    public void displayCatalog() {
+        if (count == 0) {
+            System.out.println("The catalog is empty right now.");
+            return;
+        }
+        // One buffered writer for the whole listing rather than a flush per line
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            displayPage(0, count, out);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Unable to display the catalog: " + e.getMessage());
+        }
+    }
+
+    private String string(int offsets, int bytes, int index) {
+        int start = buffer.getInt(offsets + 4 * index);
+        int end = buffer.getInt(offsets + 4 * index + 4);
+        byte[] utf8 = new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(bytes + start);
+        view.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends a stored string to the builder. ASCII, the usual case, is copied
+     * byte by byte; anything else is decoded through a String.
+     */
+    private StringBuilder appendString(int offsets, int bytes, int index, StringBuilder text) {
+        int start = bytes + buffer.getInt(offsets + 4 * index);
+        int end = bytes + buffer.getInt(offsets + 4 * index + 4);
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) < 0) {
+                return text.append(string(offsets, bytes, index));
+            }
+        }
+        for (int i = start; i < end; i++) {
+            text.append((char) buffer.get(i));
+        }
+        return text;
+    }
+
+    private int compareId(int row, byte[] key) {
+        int start = buffer.getInt(sections[ID_OFFSETS] + 4 * row);
+        int end = buffer.getInt(sections[ID_OFFSETS] + 4 * row + 4);
+        int base = sections[ID_BYTES] + start;
+        int length = end - start;
+        for (int i = 0; i < length && i < key.length; i++) {
+            int cmp = (buffer.get(base + i) & 0xFF) - (key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length && i < b.length; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Writes the catalog as a columnar snapshot and forces it to disk.
+     */
+    public static void write(Path path, Catalog<LibraryItem<String>, String> catalog) throws IOException {
+        List<LibraryItem<String>> items = new ArrayList<>(catalog.size());
+        catalog.forEachItem(items::add);
+        int count = items.size();
+        int[] sections = new int[SECTIONS];
+
+        try (FileOutputStream file = new FileOutputStream(path.toFile())) {
+            CRC32 crc = new CRC32();
+            FileChannel channel = file.getChannel();
+            channel.position(HEADER_SIZE); // the header is filled in once the sections are written
+            DataOutputStream body = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), crc));
+            int position = HEADER_SIZE;
+
+            sections[TYPES] = position;
+            for (LibraryItem<String> item : items) {
+                body.writeByte(ItemType.of(item).ordinal());
+            }
+            position += count;
+
+            byte[][] ids = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                ids[i] = items.get(i).getItemID().getBytes(StandardCharsets.UTF_8);
+            }
+            position = writeStrings(body, position, Arrays.asList(ids), sections, ID_OFFSETS, ID_BYTES);
+
+            List<byte[]> titles = new ArrayList<>(count);
+            for (LibraryItem<String> item : items) {
+                titles.add(item.getTitle().getBytes(StandardCharsets.UTF_8));
+            }
+            position = writeStrings(body, position, titles, sections, TITLE_OFFSETS, TITLE_BYTES);
+            titles = null;
+
+            Map<String, Integer> codes = new HashMap<>();
+            List<byte[]> dictionary = new ArrayList<>();
+            position = pad(body, position);
+            sections[AUTHOR_CODES] = position;
+            for (LibraryItem<String> item : items) {
+                Integer code = codes.get(item.getAuthor());
+                if (code == null) {
+                    code = dictionary.size();
+                    codes.put(item.getAuthor(), code);
+                    dictionary.add(item.getAuthor().getBytes(StandardCharsets.UTF_8));
+                }
+                body.writeInt(code);
+            }
+            position += 4 * count;
+            position = writeStrings(body, position, dictionary, sections, DICT_OFFSETS, DICT_BYTES);
+
+            position = pad(body, position);
+            sections[ID_ORDER] = position;
+            for (int row : idOrder(ids)) {
+                body.writeInt(row);
+            }
+            body.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(dictionary.size());
+            for (int section : sections) {
+                header.putInt(section);
+            }
+            header.putInt((int) crc.getValue());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Writes the bytes of each string back to back followed by the offsets
+     * table, and records where both start.
+     *
+     * @return the file position after the offsets
+     */
+    private static int writeStrings(DataOutputStream out, int position, List<byte[]> strings,
+            int[] sections, int offsetsSection, int bytesSection) throws IOException {
+        sections[bytesSection] = position;
+        long total = 0;
+        for (byte[] string : strings) {
+            out.write(string);
+            total += string.length;
+        }
+        if (position + total > Integer.MAX_VALUE) {
+            throw new IOException("Catalog too large for a single snapshot file");
+        }
+        position = pad(out, position + (int) total);
+        sections[offsetsSection] = position;
+        int offset = 0;
+        out.writeInt(offset);
+        for (byte[] string : strings) {
+            offset += string.length;
+            out.writeInt(offset);
+        }
+        return position + 4 * (strings.size() + 1);
+    }
+
+    private static int pad(DataOutputStream out, int position) throws IOException {
+        while ((position & 3) != 0) {
+            out.writeByte(0);
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Returns the item numbers sorted by unsigned ID bytes, the order getItem
+     * searches in.
+     */
+    private static int[] idOrder(byte[][] ids) {
+        int count = ids.length;
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compareBytes(ids[a], ids[b]));
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = order[i];
+        }
+        return rows;
+    }
+}
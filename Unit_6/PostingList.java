@@ -0,0 +1,67 @@
+import java.util.Arrays;
+
+/**
+ * Posting list for one term: ascending document numbers and term frequencies,
+ * stored as delta-encoded varints in a single byte array so that a term costs
+ * a couple of bytes per document instead of a boxed entry.
+ */
+class PostingList {
+    private byte[] data = new byte[8];
+    private int length = 0;
+    private int lastDoc = -1;
+    int docFreq = 0; // live documents containing the term
+
+    public void add(int doc, int termFreq) {
+        if (data.length - length < 10) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        writeVarint(doc - lastDoc);
+        writeVarint(termFreq);
+        lastDoc = doc;
+        docFreq++;
+    }
+
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Forward-only reader over the postings; doc is -1 before the first call
+     * to next() and Integer.MAX_VALUE once the list is exhausted.
+     */
+    class Cursor {
+        int doc = -1;
+        int termFreq = 0;
+        private int pos = 0;
+
+        boolean next() {
+            if (pos >= length) {
+                doc = Integer.MAX_VALUE;
+                return false;
+            }
+            doc += readVarint();
+            termFreq = readVarint();
+            return true;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
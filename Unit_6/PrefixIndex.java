@@ -0,0 +1,49 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Sorted secondary index from a case-folded key (title or author) to the items
+ * carrying it. Exact lookups are a single tree probe and prefix lookups walk
+ * only the matching range of keys.
+ */
+class PrefixIndex<T> {
+    private TreeMap<String, Set<T>> entries = new TreeMap<>();
+
+    static String fold(String key) {
+        return key == null ? "" : key.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public void add(String key, T item) {
+        entries.computeIfAbsent(fold(key), k -> new LinkedHashSet<>()).add(item);
+    }
+
+    public void remove(String key, T item) {
+        String folded = fold(key);
+        Set<T> items = entries.get(folded);
+        if (items != null) {
+            items.remove(item);
+            if (items.isEmpty()) {
+                entries.remove(folded);
+            }
+        }
+    }
+
+    public List<T> find(String key) {
+        Set<T> items = entries.get(fold(key));
+        return items == null ? new ArrayList<>() : new ArrayList<>(items);
+    }
+
+    public List<T> findByPrefix(String prefix) {
+        String folded = fold(prefix);
+        List<T> result = new ArrayList<>();
+        // Every key starting with the prefix sorts between prefix and prefix + '\uffff'
+        for (Set<T> items : entries.subMap(folded, true, folded + Character.MAX_VALUE, false).values()) {
+            result.addAll(items);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,12 @@
+/**
+ * An item returned by a ranked search together with its relevance score.
+ */
+class SearchHit<T> {
+    final T item;
+    final double score;
+
+    SearchHit(T item, double score) {
+        this.item = item;
+        this.score = score;
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.IntFunction;
+
+/**
+ * Full-text inverted index over item titles and authors, ranked with BM25.
+ * Documents are numbered by their catalog slot, so postings are appended in
+ * ascending order. Removed documents stay in the postings until the catalog
+ * compacts and rebuilds the index; queries skip them through the item lookup.
+ */
+class TextIndex<T extends LibraryItem<?>> {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private Map<String, PostingList> postings = new HashMap<>();
+    private int[] docLengths = new int[16];
+    private long totalLength = 0;
+    private int docCount = 0;
+
+    /**
+     * Splits text into lower-case runs of letters and digits.
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static Map<String, Integer> termFrequencies(LibraryItem<?> item) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String token : tokenize(item.getTitle())) {
+            counts.merge(token, 1, Integer::sum);
+        }
+        for (String token : tokenize(item.getAuthor())) {
+            counts.merge(token, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    public void add(int doc, T item) {
+        Map<String, Integer> counts = termFrequencies(item);
+        int docLength = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), k -> new PostingList()).add(doc, entry.getValue());
+            docLength += entry.getValue();
+        }
+        if (doc >= docLengths.length) {
+            docLengths = Arrays.copyOf(docLengths, Math.max(doc + 1, docLengths.length * 2));
+        }
+        docLengths[doc] = docLength;
+        totalLength += docLength;
+        docCount++;
+    }
+
+    public void remove(int doc, T item) {
+        for (String term : termFrequencies(item).keySet()) {
+            PostingList list = postings.get(term);
+            if (list != null && --list.docFreq == 0) {
+                postings.remove(term);
+            }
+        }
+        totalLength -= docLengths[doc];
+        docLengths[doc] = 0;
+        docCount--;
+    }
+
+    /**
+     * Returns the k best matching items for the query, best first. Postings of
+     * all query terms are merged document-at-a-time, so only a k-sized heap is
+     * kept in memory regardless of how many documents match.
+     *
+     * @param itemAt resolves a document number to its item, or null if removed
+     */
+    public List<SearchHit<T>> search(String query, int k, IntFunction<T> itemAt) {
+        List<PostingList.Cursor> cursors = new ArrayList<>();
+        List<Double> idfs = new ArrayList<>();
+        for (String term : new LinkedHashSet<>(tokenize(query))) {
+            PostingList list = postings.get(term);
+            if (list != null) {
+                PostingList.Cursor cursor = list.cursor();
+                cursor.next();
+                cursors.add(cursor);
+                idfs.add(Math.log(1 + (docCount - list.docFreq + 0.5) / (list.docFreq + 0.5)));
+            }
+        }
+        if (cursors.isEmpty() || k <= 0) {
+            return new ArrayList<>();
+        }
+
+        double avgLength = docCount == 0 ? 1 : (double) totalLength / docCount;
+        PriorityQueue<double[]> best = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(a[0], b[0]));
+        while (true) {
+            int doc = Integer.MAX_VALUE;
+            for (PostingList.Cursor cursor : cursors) {
+                doc = Math.min(doc, cursor.doc);
+            }
+            if (doc == Integer.MAX_VALUE) {
+                break;
+            }
+            double score = 0;
+            double norm = K1 * (1 - B + B * docLengths[doc] / avgLength);
+            for (int i = 0; i < cursors.size(); i++) {
+                PostingList.Cursor cursor = cursors.get(i);
+                if (cursor.doc == doc) {
+                    score += idfs.get(i) * cursor.termFreq * (K1 + 1) / (cursor.termFreq + norm);
+                    cursor.next();
+                }
+            }
+            if (itemAt.apply(doc) == null) {
+                continue;
+            }
+            if (best.size() < k) {
+                best.add(new double[] {score, doc});
+            } else if (score > best.peek()[0]) {
+                best.poll();
+                best.add(new double[] {score, doc});
+            }
+        }
+
+        List<SearchHit<T>> results = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            double[] hit = best.poll();
+            results.add(new SearchHit<>(itemAt.apply((int) hit[1]), hit[0]));
+        }
+        Collections.reverse(results);
+        return results;
+    }
+}
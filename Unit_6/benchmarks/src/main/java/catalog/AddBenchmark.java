@@ -0,0 +1,54 @@
+package catalog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * addItem: fills an empty catalog with size items. The score is the time for
+ * the whole fill, so divide by size for the time per add; the items are made
+ * beforehand and only the catalog's own work is timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AddBenchmark {
+    @Param({"baseline", "catalog", "long", "concurrent"})
+    public String impl;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private List<LibraryItem<String>> items;
+
+    @Setup
+    public void setup() {
+        items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(CatalogFixture.item(i));
+        }
+    }
+
+    @Benchmark
+    public CatalogFixture.Target fill() throws Exception {
+        CatalogFixture.Target target = CatalogFixture.create(impl);
+        for (LibraryItem<String> item : items) {
+            target.add(item);
+        }
+        return target;
+    }
+}
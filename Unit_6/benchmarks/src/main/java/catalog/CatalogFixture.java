@@ -0,0 +1,349 @@
+package catalog;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * What the benchmarks share: the catalog implementations behind one
+ * interface, the generated items and the ID access patterns.
+ *
+ * The implementations are named by the benchmarks' "impl" parameter:
+ * <pre>
+ *   baseline     the original ArrayList catalog, searched with equals()
+ *   catalog      Catalog, indexed by ID
+ *   long         LongCatalog with packed IDs
+ *   concurrent   ConcurrentCatalog
+ * </pre>
+ */
+final class CatalogFixture {
+    /** The baseline scans linearly, so it only runs up to this size. */
+    static final int BASELINE_MAX_SIZE = 100000;
+
+    private static final String[] AUTHORS = new String[1000];
+
+    static {
+        for (int i = 0; i < AUTHORS.length; i++) {
+            AUTHORS[i] = "Author " + i;
+        }
+    }
+
+    private CatalogFixture() {
+    }
+
+    /**
+     * The catalog as it was before the ID index: an ArrayList searched with
+     * equals() on every lookup and shifted on every removal.
+     */
+    static final class BaselineCatalog {
+        private final List<LibraryItem<String>> libraryItems = new ArrayList<>();
+
+        void addItem(LibraryItem<String> item) {
+            libraryItems.add(item);
+        }
+
+        void removeItem(String itemID) throws ItemNotFoundException {
+            for (int i = 0; i < libraryItems.size(); i++) {
+                if (libraryItems.get(i).getItemID().equals(itemID)) {
+                    libraryItems.remove(i);
+                    return;
+                }
+            }
+            throw new ItemNotFoundException("No item found with ID: " + itemID);
+        }
+
+        LibraryItem<String> getItem(String itemID) throws ItemNotFoundException {
+            for (LibraryItem<String> item : libraryItems) {
+                if (item.getItemID().equals(itemID)) {
+                    return item;
+                }
+            }
+            throw new ItemNotFoundException("No item found with ID: " + itemID);
+        }
+
+        int displayPage(int offset, int limit, Writer out) throws IOException {
+            int end = Math.min(libraryItems.size(), offset + limit);
+            for (int i = offset; i < end; i++) {
+                out.write(libraryItems.get(i).toString());
+                out.write(System.lineSeparator());
+            }
+            return Math.max(0, end - offset);
+        }
+    }
+
+    /**
+     * The operations under test, implemented once per catalog class. Lookups
+     * and removals go by position in an array of IDs handed to prepare()
+     * beforehand, which turns them into the implementation's own keys, so
+     * converting an ID (packing it, for the long catalog) is never timed.
+     */
+    interface Target {
+        void add(LibraryItem<String> item) throws Exception;
+
+        void prepare(String[] itemIDs);
+
+        boolean get(int key);
+
+        boolean remove(int key);
+
+        /** Returns -1 if the implementation cannot page. */
+        int displayPage(int offset, int limit, Writer out) throws IOException;
+    }
+
+    /**
+     * A target whose keys are the IDs themselves.
+     */
+    private abstract static class StringKeys implements Target {
+        String[] keys;
+
+        @Override
+        public void prepare(String[] itemIDs) {
+            keys = itemIDs.clone();
+        }
+
+        @Override
+        public int displayPage(int offset, int limit, Writer out) throws IOException {
+            return -1;
+        }
+    }
+
+    static Target create(String impl) {
+        switch (impl) {
+            case "baseline": {
+                BaselineCatalog catalog = new BaselineCatalog();
+                return new StringKeys() {
+                    public void add(LibraryItem<String> item) {
+                        catalog.addItem(item);
+                    }
+
+                    public boolean get(int key) {
+                        try {
+                            return catalog.getItem(keys[key]) != null;
+                        } catch (ItemNotFoundException e) {
+                            return false;
+                        }
+                    }
+
+                    public boolean remove(int key) {
+                        try {
+                            catalog.removeItem(keys[key]);
+                            return true;
+                        } catch (ItemNotFoundException e) {
+                            return false;
+                        }
+                    }
+
+                    @Override
+                    public int displayPage(int offset, int limit, Writer out) throws IOException {
+                        return catalog.displayPage(offset, limit, out);
+                    }
+                };
+            }
+            case "catalog": {
+                Catalog<LibraryItem<String>, String> catalog = new Catalog<>();
+                return new StringKeys() {
+                    public void add(LibraryItem<String> item) throws Exception {
+                        catalog.addItem(item);
+                    }
+
+                    public boolean get(int key) {
+                        try {
+                            return catalog.getItem(keys[key]) != null;
+                        } catch (ItemNotFoundException e) {
+                            return false;
+                        }
+                    }
+
+                    public boolean remove(int key) {
+                        try {
+                            catalog.removeItem(keys[key]);
+                            return true;
+                        } catch (ItemNotFoundException e) {
+                            return false;
+                        }
+                    }
+
+                    @Override
+                    public int displayPage(int offset, int limit, Writer out) throws IOException {
+                        return catalog.displayPage(offset, limit, out);
+                    }
+                };
+            }
+            case "long": {
+                LongCatalog<LibraryItem<String>> catalog = LongCatalog.withPackedIds();
+                return new Target() {
+                    private long[] keys;
+
+                    public void add(LibraryItem<String> item) throws Exception {
+                        catalog.addItem(item);
+                    }
+
+                    public void prepare(String[] itemIDs) {
+                        keys = new long[itemIDs.length];
+                        for (int i = 0; i < keys.length; i++) {
+                            keys[i] = ItemIdCodec.pack(itemIDs[i]);
+                        }
+                    }
+
+                    public boolean get(int key) {
+                        try {
+                            return catalog.getItem(keys[key]) != null;
+                        } catch (ItemNotFoundException e) {
+                            return false;
+                        }
+                    }
+
+                    public boolean remove(int key) {
+                        try {
+                            catalog.removeItem(keys[key]);
+                            return true;
+                        } catch (ItemNotFoundException e) {
+                            return false;
+                        }
+                    }
+
+                    public int displayPage(int offset, int limit, Writer out) throws IOException {
+                        return catalog.displayPage(offset, limit, out);
+                    }
+                };
+            }
+            case "concurrent": {
+                ConcurrentCatalog<LibraryItem<String>, String> catalog = new ConcurrentCatalog<>();
+                return new StringKeys() {
+                    public void add(LibraryItem<String> item) throws Exception {
+                        catalog.addItem(item);
+                    }
+
+                    public boolean get(int key) {
+                        try {
+                            return catalog.getItem(keys[key]) != null;
+                        } catch (ItemNotFoundException e) {
+                            return false;
+                        }
+                    }
+
+                    public boolean remove(int key) {
+                        try {
+                            catalog.removeItem(keys[key]);
+                            return true;
+                        } catch (ItemNotFoundException e) {
+                            return false;
+                        }
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + impl);
+        }
+    }
+
+    /**
+     * Refuses sizes the baseline's linear scans cannot get through in a
+     * benchmark's time; JMH reports the error and goes on with the next run.
+     */
+    static void checkSize(String impl, int size) {
+        if (impl.equals("baseline") && size > BASELINE_MAX_SIZE) {
+            throw new IllegalArgumentException("The baseline only runs up to " + BASELINE_MAX_SIZE + " items");
+        }
+    }
+
+    static String itemID(long n) {
+        return String.format("B%08d", n);
+    }
+
+    static LibraryItem<String> item(long n) {
+        return new Book("Title " + n, AUTHORS[(int) (n % AUTHORS.length)], itemID(n));
+    }
+
+    static Target filled(String impl, int size) throws Exception {
+        checkSize(impl, size);
+        Target target = create(impl);
+        for (int i = 0; i < size; i++) {
+            target.add(item(i));
+        }
+        return target;
+    }
+
+    /**
+     * Picks item IDs in the given access pattern; a miss is a number past the
+     * end of the catalog.
+     */
+    static String[] keys(int size, double hitRatio, String dist, int count, long seed) {
+        Random random = new Random(seed);
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            long n;
+            switch (dist) {
+                case "sequential":
+                    n = i % size;
+                    break;
+                case "uniform":
+                    n = random.nextInt(size);
+                    break;
+                case "skewed":
+                    // Roughly Zipf-like: a small set of hot items takes most lookups
+                    n = (long) (Math.pow(random.nextDouble(), 4) * size);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown distribution: " + dist);
+            }
+            if (random.nextDouble() >= hitRatio) {
+                n += size;
+            }
+            keys[i] = itemID(n);
+        }
+        return keys;
+    }
+
+    /**
+     * Picks count distinct item IDs, all hits, in the given access pattern,
+     * for removing each item once. A skewed order removes the hot items first;
+     * once the pattern stops finding new items the rest follow in number order.
+     */
+    static String[] distinctKeys(int size, String dist, int count, long seed) {
+        count = Math.min(count, size);
+        boolean[] taken = new boolean[size];
+        String[] keys = new String[count];
+        int found = 0;
+        for (int round = 0; round < 4 && found < count; round++) {
+            for (String key : keys(size, 1.0, dist, count, seed + round)) {
+                int n = Integer.parseInt(key.substring(1));
+                if (!taken[n] && found < count) {
+                    taken[n] = true;
+                    keys[found++] = key;
+                }
+            }
+        }
+        for (int n = 0; found < count; n++) {
+            if (!taken[n]) {
+                keys[found++] = itemID(n);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Discards everything written to it, so display measures formatting only.
+     * Like BufferedWriter it leaves write(String) and append() to Writer, which
+     * copy the characters into write(char[]), so every implementation pays
+     * the same for handing its text over.
+     */
+    static final class NullWriter extends Writer {
+        long characters = 0;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            characters += length;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package catalog;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Displaying one page of PAGE_SIZE items from a random position, written to a
+ * writer that discards the text, so only finding and formatting are timed.
+ * Only the implementations that can page take part.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DisplayBenchmark {
+    static final int PAGE_SIZE = 100;
+
+    @Param({"baseline", "catalog", "long"})
+    public String impl;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private CatalogFixture.Target target;
+    private final Random random = new Random(1);
+    private final CatalogFixture.NullWriter out = new CatalogFixture.NullWriter();
+
+    @Setup
+    public void setup() throws Exception {
+        target = CatalogFixture.filled(impl, size);
+    }
+
+    @Benchmark
+    public long page() throws IOException {
+        target.displayPage(random.nextInt(Math.max(1, size - PAGE_SIZE)), PAGE_SIZE, out);
+        return out.characters;
+    }
+}
@@ -0,0 +1,68 @@
+package catalog;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * getItem by ID for each catalog implementation, over catalog sizes, hit
+ * ratios and access patterns. Run with -t N for N reader threads; every
+ * thread walks the same keys from its own starting point.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetBenchmark {
+    static final int KEY_COUNT = 1 << 16;
+
+    @Param({"baseline", "catalog", "long", "concurrent"})
+    public String impl;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"1.0", "0.5"})
+    public double hitRatio;
+
+    @Param({"sequential", "uniform", "skewed"})
+    public String distribution;
+
+    private CatalogFixture.Target target;
+
+    @Setup
+    public void setup() throws Exception {
+        target = CatalogFixture.filled(impl, size);
+        target.prepare(CatalogFixture.keys(size, hitRatio, distribution, KEY_COUNT, size));
+    }
+
+    /**
+     * Each thread's position in the keys.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup
+        public void setup(ThreadParams thread) {
+            next = thread.getThreadIndex() * (KEY_COUNT / thread.getThreadCount());
+        }
+    }
+
+    @Benchmark
+    public boolean get(Cursor cursor) {
+        return target.get(cursor.next++ & (KEY_COUNT - 1));
+    }
+}
@@ -0,0 +1,66 @@
+package catalog;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * removeItem: removes REMOVES distinct items from a freshly filled catalog, in
+ * the given access pattern. Refilling happens before each invocation and is
+ * not timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RemoveBenchmark {
+    static final int REMOVES = 10000;
+
+    @Param({"baseline", "catalog", "long", "concurrent"})
+    public String impl;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"sequential", "uniform", "skewed"})
+    public String distribution;
+
+    private String[] order;
+    private CatalogFixture.Target target;
+
+    @Setup
+    public void pickOrder() {
+        order = CatalogFixture.distinctKeys(size, distribution, REMOVES, 7);
+    }
+
+    @Setup(Level.Invocation)
+    public void refill() throws Exception {
+        target = CatalogFixture.filled(impl, size);
+        target.prepare(order);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REMOVES)
+    public int remove() {
+        int removed = 0;
+        for (int key = 0; key < order.length; key++) {
+            if (target.remove(key)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
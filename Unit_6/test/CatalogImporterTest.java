@@ -0,0 +1,64 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * CSV import with a header that reorders the columns or lacks some of them.
+ */
+public class CatalogImporterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shortRowUnderReorderedHeaderIsRejected() throws Exception {
+        Path file = folder.newFile("items.csv").toPath();
+        Files.write(file, Arrays.asList(
+                "extra,type,id,title,author",
+                "x,Book,1,T,A",
+                "x,Book,2,T",
+                "y,DVD,3,T3,A3"), StandardCharsets.UTF_8);
+
+        Catalog<LibraryItem<String>, String> catalog = new Catalog<>();
+        CatalogImporter.Report report = new CatalogImporter(false, 1).importFile(file, catalog);
+
+        assertEquals(4, report.rows); // the header is counted as a line
+        assertEquals(2, report.imported);
+        assertEquals(1, report.rejected);
+        assertEquals(2, catalog.size());
+        assertNotNull(catalog.getItem("1"));
+        assertNotNull(catalog.getItem("3"));
+        try {
+            catalog.getItem("2");
+            fail("short row was imported");
+        } catch (ItemNotFoundException expected) {
+            // rejected, as it should be
+        }
+    }
+
+    @Test
+    public void headerWithoutEveryColumnFailsTheImport() throws Exception {
+        Path file = folder.newFile("renamed.csv").toPath();
+        Files.write(file, Arrays.asList(
+                "id,name,writer,type",
+                "1,T,A,Book"), StandardCharsets.UTF_8);
+
+        Catalog<LibraryItem<String>, String> catalog = new Catalog<>();
+        try {
+            new CatalogImporter(false, 1).importFile(file, catalog);
+            fail("a header without title and author columns was accepted");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("\"title\""));
+        }
+        assertEquals(0, catalog.size());
+    }
+}
@@ -0,0 +1,65 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * ConcurrentCatalog under many threads, checked by CatalogBenchmark's stress
+ * test, and the linearizability checker itself on small known histories.
+ */
+public class ConcurrentCatalogTest {
+    private static final long RUN_MILLIS = 500;
+
+    @Test
+    public void sharedKeyHistoriesAreLinearizable() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = Math.max(4, 2 * cores);
+        CatalogBenchmark.stress(threads, RUN_MILLIS); // warms up the JIT, so the runs below compare fairly
+        CatalogBenchmark.StressResult single = CatalogBenchmark.stress(1, RUN_MILLIS);
+        CatalogBenchmark.StressResult many = CatalogBenchmark.stress(threads, RUN_MILLIS);
+        assertEquals(Collections.emptyList(), single.failures);
+        assertEquals(Collections.emptyList(), many.failures);
+        assertTrue(many.operations > 0);
+        System.out.printf("ConcurrentCatalog: %.0f ops/sec on 1 thread, %.0f on %d threads (%.2fx) with %d cores%n",
+                single.throughput(), many.throughput(), threads, many.throughput() / single.throughput(), cores);
+    }
+
+    @Test
+    public void overlappingOperationsMayTakeEffectInEitherOrder() {
+        // The get overlaps the add, so it may see the key or not
+        CatalogBenchmark.History adder = new CatalogBenchmark.History();
+        adder.record(0, CatalogBenchmark.History.ADD, true, 0, 100);
+        CatalogBenchmark.History reader = new CatalogBenchmark.History();
+        reader.record(0, CatalogBenchmark.History.GET, false, 10, 20);
+        reader.record(0, CatalogBenchmark.History.GET, true, 30, 40);
+        assertEquals(Collections.emptyList(), CatalogBenchmark.checkLinearizable(Arrays.asList(adder, reader), 1));
+    }
+
+    @Test
+    public void keyCannotDisappearWithoutARemove() {
+        CatalogBenchmark.History adder = new CatalogBenchmark.History();
+        adder.record(0, CatalogBenchmark.History.ADD, true, 0, 100);
+        CatalogBenchmark.History reader = new CatalogBenchmark.History();
+        reader.record(0, CatalogBenchmark.History.GET, true, 10, 20);
+        reader.record(0, CatalogBenchmark.History.GET, false, 30, 40);
+        List<String> failures = CatalogBenchmark.checkLinearizable(Arrays.asList(adder, reader), 1);
+        assertEquals(1, failures.size());
+    }
+
+    @Test
+    public void twoAddsNeedARemoveBetweenThem() {
+        CatalogBenchmark.History first = new CatalogBenchmark.History();
+        first.record(0, CatalogBenchmark.History.ADD, true, 0, 10);
+        CatalogBenchmark.History second = new CatalogBenchmark.History();
+        second.record(0, CatalogBenchmark.History.ADD, true, 20, 30);
+        assertEquals(1, CatalogBenchmark.checkLinearizable(Arrays.asList(first, second), 1).size());
+        // With a remove overlapping both, there is an order that works
+        CatalogBenchmark.History remover = new CatalogBenchmark.History();
+        remover.record(0, CatalogBenchmark.History.REMOVE, true, 5, 25);
+        assertEquals(Collections.emptyList(),
+                CatalogBenchmark.checkLinearizable(Arrays.asList(first, second, remover), 1));
+    }
+}
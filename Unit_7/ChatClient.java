@@ -1,91 +1,379 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.net.ssl.SSLContext;
 
 /**
  * This class implements the chat client that connects to the server,
  * sends messages, and receives broadcasted messages from other clients.
  * 
+ * When the server offers the binary protocol (see ChatProtocol) the client switches to it, and shows
+ * the frames it receives as the same lines the text protocol would have sent. Options:
+ *     --text          stay on the text protocol
+ *     --history=N     show the last N messages of the lobby on connecting
+ *     --since=ID      show the lobby's messages after message #ID on connecting, to catch up after a reconnect
+ *     --tls           connect over TLS, trusting the certificates Java trusts
+ *     --tls=FILE      connect over TLS, trusting the certificates in a PKCS12 truststore (see ChatTls)
+ *     --tls-password  the truststore's password, "changeit" by default
+ * 
+ * Once the name is sent, one non-blocking channel carries everything: a receiver thread reads and writes it,
+ * and hands the lines it decodes to a ClientScreen, which draws them a frame at a time. The receiver never
+ * waits on the terminal, so a busy room cannot back up into the server. With TLS the same channel is wrapped
+ * in a TlsChannel, and the receiver works the same way through it.
+ * 
  * @author [Anh Tuan Ho]
  */
 public class ChatClient {
     private static final String SERVER_ADDRESS = "localhost"; // Server IP (localhost for testing)
     private static final int SERVER_PORT = 12345;             // Server port
     private static final String PROMPT = "Enter message (/q to quit program): ";
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
 
     public static void main(String[] args) {
-        Socket socket = null;
-        PrintWriter out = null;
-        BufferedReader in = null;
+        boolean textOnly = false;
+        String catchUp = null; // history command to send after the name
+        boolean secure = false;
+        String truststore = null; // null for Java's own
+        String truststorePassword = ChatTls.DEFAULT_PASSWORD;
+        for (String arg : args) {
+            if (arg.equals("--text")) {
+                textOnly = true;
+            } else if (arg.startsWith("--history=")) {
+                catchUp = "/history " + arg.substring("--history=".length());
+            } else if (arg.startsWith("--since=")) {
+                catchUp = "/since " + arg.substring("--since=".length());
+            } else if (arg.equals("--tls")) {
+                secure = true;
+            } else if (arg.startsWith("--tls=")) {
+                secure = true;
+                truststore = arg.substring("--tls=".length());
+            } else if (arg.startsWith("--tls-password=")) {
+                truststorePassword = arg.substring("--tls-password=".length());
+            } else {
+                System.out.println("Usage: java ChatClient [--text] [--history=N | --since=ID]");
+                System.out.println("                       [--tls[=TRUSTSTORE.p12]] [--tls-password=PASSWORD]");
+                return;
+            }
+        }
+        SocketChannel channel = null;
         Scanner scanner = new Scanner(System.in);
 
         try {
-            // Establish connection to the server
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-
-            // Set up input and output streams
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // Establish connection to the server; until the name is sent it is used blocking
+            channel = SocketChannel.open(new InetSocketAddress(SERVER_ADDRESS, SERVER_PORT));
+            TlsChannel tls = null;
+            if (secure) {
+                SSLContext context = ChatTls.clientContext(truststore, truststorePassword);
+                tls = new TlsChannel(channel, ChatTls.clientEngine(context, SERVER_ADDRESS, SERVER_PORT),
+                        new TlsChannel.Buffers());
+            }
+            ByteChannel io = tls != null ? tls : channel; // the handshake happens while reading the greeting
+            ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE); // everything on the wire is UTF-8
 
             // Read and print the initial connection message from the server (plain, no color or clearing)
-            String connectionMsg = in.readLine();
+            String connectionMsg = readLine(io, input);
+            boolean binary = false;
             if (connectionMsg != null) {
+                binary = !textOnly && connectionMsg.endsWith(ChatProtocol.OFFER_TAG);
+                if (binary) {
+                    connectionMsg = connectionMsg.substring(0, connectionMsg.length() - ChatProtocol.OFFER_TAG.length()).trim();
+                    write(io, encode(false, ChatProtocol.SWITCH_LINE)); // everything after this is frames
+                }
                 System.out.println(connectionMsg);
             }
 
             // Prompt for user's name and send it to the server as the first message
             System.out.print("Enter your name: ");
             String name = scanner.nextLine();
-            out.println(name);
+            write(io, encode(binary, name));
+            if (catchUp != null) {
+                write(io, encode(binary, catchUp));
+            }
 
             // Display hello message after entering name
             System.out.println("Hello " + name + " !");
+            System.out.flush();
 
-            // Start a thread to handle incoming broadcast messages from the server
-            BufferedReader finalIn = in; // For use in lambda
-            Thread receiverThread = new Thread(() -> {
-                try {
-                    String serverResponse;
-                    while ((serverResponse = finalIn.readLine()) != null) {
-                        // Clear the current prompt line using ANSI escape code for better compatibility
-                        System.out.print("\u001B[2K\r");
-                        // Print the message in cyan
-                        System.out.println("\u001B[36m" + serverResponse + "\u001B[0m");
-                        // Reprint the prompt
-                        System.out.print(PROMPT);
-                    }
-                } catch (IOException e) {
-                    // Suppress stack trace for clean exit
-                }
-            });
-            receiverThread.setDaemon(true); // Set as daemon so JVM exits when main thread ends
-            receiverThread.start();
+            // From here on the screen draws everything, and the receiver thread does all network I/O
+            ClientScreen screen = new ClientScreen(PROMPT);
+            screen.start();
+            screen.showPrompt(); // Initial prompt after hello message
+            channel.configureBlocking(false);
+            Receiver receiver = new Receiver(channel, tls, input, binary, screen);
+            receiver.start();
 
             // Read user input from console and send to server
-            System.out.print(PROMPT); // Initial prompt after hello message
             while (scanner.hasNextLine()) {
                 String userInput = scanner.nextLine();
-                if (userInput.equals("/q")) {
-                    // Shutdown input/output to unblock the receiving thread
-                    socket.shutdownInput();
-                    socket.shutdownOutput();
+                if (userInput.equals("/q") || !receiver.isAlive()) {
                     break; // Exit the loop to quit the program
                 }
-                out.println(userInput);
-                System.out.print(PROMPT); // Reprint prompt after sending
+                receiver.send(encode(binary, userInput));
+                screen.showPrompt(); // Reprint prompt after sending
             }
+            receiver.quit();
         } catch (IOException e) {
-            System.out.println("Unable to connect to server.");
+            System.out.println("Unable to connect to server." + (secure ? " (" + e.getMessage() + ")" : ""));
         } finally {
             // Clean up resources
             try {
                 if (scanner != null) scanner.close();
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (socket != null) socket.close();
+                if (channel != null) channel.close();
             } catch (IOException e) {
                 // Suppress stack trace for clean exit
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Does all network I/O once the client is named: reads from the server and hands what it reads to the
+     * screen, and writes what the user sends. Other threads only queue lines for it and wake it up.
+     */
+    private static class Receiver extends Thread {
+        private final TlsChannel tls; // or null for a plain connection
+        private final ByteChannel io; // tls, or the channel itself
+        private final Selector selector;
+        private final SelectionKey key;
+        private ByteBuffer input; // bytes read but not yet handled, ready for writing
+        private final boolean binary;
+        private final ClientScreen screen;
+        private final Map<Integer, String> names = new HashMap<>(); // from the NAME frames
+        private final ConcurrentLinkedQueue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+        private ByteBuffer writing; // the line being written when the socket filled up
+        private volatile boolean quitting = false;
+
+        /**
+         * @param channel The connection, in non-blocking mode.
+         * @param tls     Its TLS layer, or null for a plain connection.
+         * @param input   Bytes already read from the server, ready for writing.
+         * @param binary  Whether the connection has switched to the binary protocol.
+         * @param screen  Where to show what arrives.
+         */
+        Receiver(SocketChannel channel, TlsChannel tls, ByteBuffer input, boolean binary, ClientScreen screen)
+                throws IOException {
+            super("chat-receiver");
+            setDaemon(true); // Set as daemon so JVM exits when main thread ends
+            this.tls = tls;
+            this.io = tls != null ? tls : channel;
+            this.input = input;
+            this.binary = binary;
+            this.screen = screen;
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        /**
+         * Queues an encoded line for the server. Any thread may call this.
+         */
+        void send(ByteBuffer line) {
+            outgoing.add(line);
+            selector.wakeup();
+        }
+
+        /**
+         * Stops the receiver; it closes the connection's selector on the way out.
+         */
+        void quit() {
+            quitting = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                handleInput(); // whatever arrived along with the greeting
+                while (!quitting) {
+                    selector.select();
+                    boolean readable = selector.selectedKeys().remove(key) && key.isReadable();
+                    // Woken to send, or the socket drained: write what is queued
+                    key.interestOps(flush() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    // With TLS whole records may be waiting in the TlsChannel, which the selector cannot see
+                    while (readable || tls != null && tls.hasBufferedInput()) {
+                        readable = false;
+                        if (!input.hasRemaining()) {
+                            input = grow(input); // a line or frame longer than the buffer
+                        }
+                        if (io.read(input) < 0) {
+                            screen.add("Connection closed by server.");
+                            return;
+                        }
+                        handleInput();
+                    }
+                }
+            } catch (IOException e) {
+                if (!quitting) {
+                    screen.add("Connection to server lost.");
+                }
+            } finally {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Suppress stack trace for clean exit
+                }
+            }
+        }
+
+        /**
+         * Writes queued lines until they are all sent or the socket is full.
+         * 
+         * @return False if some are left for when the socket drains.
+         */
+        private boolean flush() throws IOException {
+            while (true) {
+                if (writing == null && (writing = outgoing.poll()) == null) {
+                    return tls == null || tls.flush(); // the last line may still be waiting as ciphertext
+                }
+                io.write(writing);
+                if (writing.hasRemaining()) {
+                    return false;
+                }
+                writing = null;
+            }
+        }
+
+        /**
+         * Shows every complete line or frame in the input, and keeps the rest for the next read.
+         */
+        private void handleInput() throws IOException {
+            ByteBuffer buffer = input;
+            buffer.flip();
+            if (binary) {
+                ByteBuffer frame;
+                while ((frame = ChatProtocol.nextFrame(buffer)) != null) {
+                    showFrame(frame);
+                }
+            } else {
+                String line;
+                while ((line = takeLine(buffer)) != null) {
+                    screen.add(line);
+                }
+            }
+            buffer.compact();
+        }
+
+        /**
+         * Shows a frame from the server the way the text protocol would have shown it.
+         * 
+         * @param frame The frame from its type byte on.
+         */
+        private void showFrame(ByteBuffer frame) throws IOException {
+            byte type = frame.get();
+            switch (type) {
+                case ChatProtocol.BATCH:
+                    ByteBuffer inner;
+                    while ((inner = ChatProtocol.nextFrame(frame)) != null) {
+                        showFrame(inner);
+                    }
+                    break;
+                case ChatProtocol.NAME:
+                    int id = ChatProtocol.getVarint(frame);
+                    names.put(id, ChatProtocol.text(frame));
+                    break;
+                case ChatProtocol.MESSAGE:
+                case ChatProtocol.PRIVATE:
+                    int sender = ChatProtocol.getVarint(frame);
+                    String from = names.getOrDefault(sender, "Unknown") + "(ID " + sender + "): ";
+                    screen.add((type == ChatProtocol.MESSAGE ? "New message from " : "Private message from ") + from
+                            + ChatProtocol.text(frame));
+                    break;
+                case ChatProtocol.NOTICE:
+                    screen.add(ChatProtocol.text(frame));
+                    break;
+                case ChatProtocol.PING:
+                    send(ChatProtocol.frame(ChatProtocol.PONG, -1, "")); // the server checks we are alive
+                    break;
+                default:
+                    break; // a newer server's frame type; skip it
+            }
+        }
+    }
+
+    /**
+     * Encodes one line for the server, as a line or as a SEND frame.
+     * 
+     * @param binary Whether the connection has switched to the binary protocol.
+     * @param text   The line, without a terminator.
+     * @return The bytes to write.
+     */
+    private static ByteBuffer encode(boolean binary, String text) {
+        return binary ? ChatProtocol.frame(ChatProtocol.SEND, -1, text)
+                : ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes all of a buffer to a blocking channel.
+     * 
+     * @param channel The connection to the server.
+     * @param bytes   What to write.
+     */
+    private static void write(ByteChannel channel, ByteBuffer bytes) throws IOException {
+        ByteBuffer copy = bytes.duplicate();
+        while (copy.hasRemaining()) {
+            channel.write(copy);
+        }
+    }
+
+    /**
+     * Reads one UTF-8 line from a blocking channel. Anything read past it stays in the buffer, so frames
+     * that follow are not lost.
+     * 
+     * @param channel The connection to the server.
+     * @param input   Bytes read but not yet handled, ready for writing.
+     * @return The line without its terminator, or null at the end of the stream.
+     */
+    private static String readLine(ByteChannel channel, ByteBuffer input) throws IOException {
+        while (true) {
+            input.flip();
+            String line = takeLine(input);
+            input.compact();
+            if (line != null) {
+                return line;
+            }
+            if (!input.hasRemaining() || channel.read(input) < 0) {
+                return null; // no greeting, or one longer than the buffer
+            }
+        }
+    }
+
+    /**
+     * Takes the next complete line off the front of a buffer.
+     * 
+     * @param buffer Bytes ready for reading.
+     * @return The line without its terminator, or null if the buffer holds no complete line.
+     */
+    private static String takeLine(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                int length = i - buffer.position();
+                if (length > 0 && buffer.get(i - 1) == '\r') {
+                    length--;
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                buffer.position(i + 1);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a buffer twice the size holding the same bytes, ready for writing.
+     * 
+     * @param buffer A full buffer.
+     * @return The larger buffer.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        buffer.flip();
+        return ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+    }
+}
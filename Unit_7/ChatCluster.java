@@ -0,0 +1,331 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins several ChatServer processes into one chat. Every node is given the
+ * same list of peer addresses, one per node, and its own position in it:
+ *     java ChatServer --port=12345 --cluster=localhost:13345,localhost:13346 --node=0
+ *     java ChatServer --port=12346 --cluster=localhost:13345,localhost:13346 --node=1
+ * Clients connect to any node's chat port; the nodes talk to each other on
+ * the peer ports.
+ *
+ * A node listens for peers on its own address from the list only, and opens
+ * its links from that address too. It accepts a link only if the node named
+ * in the HELLO is listed at the address the link comes from and, when the
+ * nodes are given a --cluster-secret, only if the HELLO carries the same
+ * secret. Anything else is closed without a reply. A link that sends a
+ * malformed frame is dropped, and the peer reconnects.
+ *
+ * Each node keeps one persistent link to every other node and relays over it
+ * the chat messages and room notices of its own clients, never what it
+ * received from a peer. With every node linked to every other, a message
+ * therefore reaches each node at most once, never twice. A link is a single
+ * TCP connection written by one thread and read by one thread, so messages
+ * from one sender arrive everywhere in the order they were sent.
+ *
+ * Relayed messages wait in a bounded OutboundQueue per link, and the link
+ * writes whatever has piled up as one BATCH frame (see ChatProtocol), so a
+ * busy node sends few large writes instead of one per message. While a peer
+ * is down its queue keeps the newest messages, dropping the oldest once
+ * full, and the link reconnects every second. Delivery is at most once:
+ * nothing is acknowledged, so what was written to a connection that then
+ * broke (the batch being written, and whatever the kernel had not yet sent)
+ * is lost rather than sent again, as is whatever the queue dropped.
+ *
+ * Frames on a link:
+ * <pre>
+ *   HELLO    varint node, UTF-8 secret: first frame on a link, naming the node that opened it
+ *   MESSAGE  varint sender ID, room, sender name, UTF-8 text
+ *   NOTICE   varint 0, room, empty name, UTF-8 text
+ *   BATCH    any number of the above, as in ChatProtocol
+ * </pre>
+ * where room and name are a varint byte count followed by UTF-8 bytes.
+ */
+class ChatCluster {
+    private static final byte HELLO = 32;
+    private static final byte MESSAGE = 33;
+    private static final byte NOTICE = 34;
+    private static final int LINK_QUEUE_LINES = 100000;
+    private static final long LINK_QUEUE_BYTES = 64L * 1024 * 1024;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final int nodeId;
+    private final InetSocketAddress[] nodes;
+    private final byte[] secret;
+    private final List<PeerLink> links = new ArrayList<>();
+
+    /**
+     * @param nodeId    this node's position in the list
+     * @param addresses every node's peer address, "host:port"
+     * @param secret    what every node must send to be let in, or null for none
+     * @throws IllegalArgumentException if an address or the node is invalid
+     */
+    ChatCluster(int nodeId, String[] addresses, String secret) {
+        nodes = new InetSocketAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            int colon = addresses[i].lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("expected HOST:PORT, got " + addresses[i]);
+            }
+            nodes[i] = new InetSocketAddress(addresses[i].substring(0, colon),
+                    Integer.parseInt(addresses[i].substring(colon + 1)));
+            if (nodes[i].isUnresolved()) {
+                throw new IllegalArgumentException("unknown host in " + addresses[i]);
+            }
+        }
+        if (nodeId < 0 || nodeId >= nodes.length) {
+            throw new IllegalArgumentException("--node must be between 0 and " + (nodes.length - 1));
+        }
+        this.nodeId = nodeId;
+        this.secret = (secret == null ? "" : secret).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < nodes.length; i++) {
+            if (i != nodeId) {
+                links.add(new PeerLink(i, nodes[i]));
+            }
+        }
+    }
+
+    /** The number of nodes in the cluster. */
+    int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Starts listening for the other nodes and connecting to them.
+     */
+    void start() throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(nodes[nodeId]);
+        Thread acceptor = new Thread(() -> {
+            while (!listener.isClosed()) {
+                Socket peer;
+                try {
+                    peer = listener.accept();
+                } catch (IOException e) {
+                    ChatServer.acceptFailed(e); // pauses, so running out of descriptors does not spin
+                    continue;
+                }
+                Thread reader = new Thread(() -> readLink(peer), "cluster-peer-" + peer.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            }
+        }, "cluster-listener");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            link.start();
+        }
+        System.out.println("Cluster node " + nodeId + " of " + nodes.length + ", peers connect to "
+                + nodes[nodeId] + ".");
+    }
+
+    /**
+     * Sends a chat message from a client of this node to every other node.
+     */
+    void relayMessage(String room, int senderId, String senderName, String line) {
+        relay(frame(MESSAGE, senderId, room, senderName, line));
+    }
+
+    /**
+     * Sends a room notice about a client of this node to every other node.
+     */
+    void relayNotice(String room, String notice) {
+        relay(frame(NOTICE, 0, room, "", notice));
+    }
+
+    private void relay(ByteBuffer frame) {
+        for (PeerLink link : links) {
+            link.queue.offer(frame); // the same read-only buffer for every link
+        }
+    }
+
+    private static ByteBuffer frame(byte type, int senderId, String room, String name, String text) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + ChatProtocol.varintSize(senderId)
+                + ChatProtocol.varintSize(roomBytes.length) + roomBytes.length
+                + ChatProtocol.varintSize(nameBytes.length) + nameBytes.length + textBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(ChatProtocol.varintSize(length) + length);
+        ChatProtocol.putVarint(buffer, length);
+        buffer.put(type);
+        ChatProtocol.putVarint(buffer, senderId);
+        ChatProtocol.putVarint(buffer, roomBytes.length);
+        buffer.put(roomBytes);
+        ChatProtocol.putVarint(buffer, nameBytes.length);
+        buffer.put(nameBytes);
+        buffer.put(textBytes);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a link another node opened to this one, handing what it relays to
+     * the local clients, until the link breaks or sends a malformed frame.
+     */
+    private void readLink(Socket peer) {
+        int from = -1;
+        try (Socket socket = peer) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            ByteBuffer hello = ChatProtocol.readFrame(in, 64 + secret.length);
+            if (hello == null || hello.get() != HELLO) {
+                return;
+            }
+            int node = ChatProtocol.getVarint(hello);
+            if (!admits(node, socket.getInetAddress(), hello)) {
+                System.out.println("Refused a cluster link from " + socket.getRemoteSocketAddress()
+                        + " claiming to be node " + node + ".");
+                return;
+            }
+            from = node;
+            System.out.println("Node " + from + " linked to this node.");
+            ByteBuffer frame;
+            while ((frame = ChatProtocol.readFrame(in)) != null) {
+                if (frame.get(0) == ChatProtocol.BATCH) {
+                    frame.get();
+                    ByteBuffer inner;
+                    while ((inner = ChatProtocol.nextFrame(frame)) != null) {
+                        dispatch(inner);
+                    }
+                } else {
+                    dispatch(frame);
+                }
+            }
+        } catch (IOException e) {
+            // The peer went away; it reconnects when it can
+        } catch (RuntimeException e) {
+            // A frame shorter than its fields say, or worse: trust nothing more on this link
+            System.out.println("Malformed frame from " + (from >= 0 ? "node " + from : peer.getRemoteSocketAddress())
+                    + " (" + e + "); dropping the link.");
+        }
+        if (from >= 0) {
+            System.out.println("Node " + from + " unlinked from this node.");
+        }
+    }
+
+    /**
+     * Decides whether a HELLO comes from a node of the cluster: the node it
+     * names must be another one in the list, listed at the address the link
+     * comes from, and the rest of the frame must be the shared secret.
+     */
+    private boolean admits(int node, InetAddress from, ByteBuffer hello) {
+        if (node < 0 || node >= nodes.length || node == nodeId || !nodes[node].getAddress().equals(from)) {
+            return false;
+        }
+        byte[] offered = new byte[hello.remaining()];
+        hello.get(offered);
+        return MessageDigest.isEqual(offered, secret);
+    }
+
+    private static void dispatch(ByteBuffer frame) throws IOException {
+        byte type = frame.get();
+        if (type != MESSAGE && type != NOTICE) {
+            return;
+        }
+        int senderId = ChatProtocol.getVarint(frame);
+        String room = string(frame);
+        String name = string(frame);
+        String text = ChatProtocol.text(frame);
+        if (type == MESSAGE) {
+            ChatServer.relayedMessage(room, senderId, name, text);
+        } else {
+            ChatServer.relayedNotice(room, text);
+        }
+    }
+
+    private static String string(ByteBuffer frame) throws IOException {
+        int length = ChatProtocol.getVarint(frame);
+        if (length > frame.remaining()) {
+            throw new IOException("Malformed relay frame");
+        }
+        ByteBuffer bytes = frame.duplicate();
+        bytes.limit(bytes.position() + length);
+        frame.position(frame.position() + length);
+        return ChatProtocol.text(bytes);
+    }
+
+    /**
+     * The link from this node to one other: a queue of relayed frames and the
+     * thread that keeps a connection open and writes them.
+     */
+    private final class PeerLink extends Thread {
+        private final int peer;
+        private final InetSocketAddress address;
+        final OutboundQueue queue = new OutboundQueue(LINK_QUEUE_LINES, LINK_QUEUE_BYTES,
+                OutboundQueue.OverflowPolicy.DROP_OLDEST);
+
+        PeerLink(int peer, InetSocketAddress address) {
+            super("cluster-link-" + peer);
+            this.peer = peer;
+            this.address = address;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<ByteBuffer> batch = new ArrayList<>();
+            boolean warned = false;
+            while (true) {
+                try (SocketChannel channel = SocketChannel.open()) {
+                    // From this node's own address, which is where the peer expects it
+                    channel.bind(new InetSocketAddress(nodes[nodeId].getAddress(), 0));
+                    channel.connect(address);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    ByteBuffer hello = ByteBuffer.allocate(16 + secret.length);
+                    ChatProtocol.putVarint(hello, 1 + ChatProtocol.varintSize(nodeId) + secret.length);
+                    hello.put(HELLO);
+                    ChatProtocol.putVarint(hello, nodeId);
+                    hello.put(secret);
+                    hello.flip();
+                    write(channel, new ByteBuffer[] {hello});
+                    System.out.println("Linked to node " + peer + " at " + address + ".");
+                    warned = false;
+                    while (queue.awaitLines()) {
+                        queue.drainTo(batch);
+                        ChatProtocol.wrapBatch(batch);
+                        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                        for (int i = 0; i < buffers.length; i++) {
+                            buffers[i] = batch.get(i).duplicate();
+                        }
+                        batch.clear();
+                        write(channel, buffers);
+                    }
+                } catch (IOException e) {
+                    batch.clear();
+                    if (!warned) {
+                        System.out.println("No link to node " + peer + " at " + address + " (" + e.getMessage()
+                                + "); retrying.");
+                        warned = true;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void write(SocketChannel channel, ByteBuffer[] buffers) throws IOException {
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+}
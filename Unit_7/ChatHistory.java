@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The chat history: a MessageLog per room, kept in a directory of its own.
+ *
+ * A broadcast only hands its line to record(), which puts it on a bounded
+ * queue; a single writer thread appends everything waiting in one batch and
+ * then applies retention. The broadcast path therefore never touches a file,
+ * and if the disk cannot keep up, lines are dropped from the history (and
+ * counted) rather than holding up the chat.
+ *
+ * A room's log is only started by its first message, so joining a room costs
+ * no files. At most maxOpenLogs logs are kept open: past that, the writer
+ * closes the ones used least recently, and they are opened again from their
+ * files when a message or replay needs them. Opening a log reads its segments
+ * through, so only the writer does it; a replay of a closed log waits for the
+ * writer to open it and then goes out on the client's own thread. Retention
+ * covers the closed logs too: every RETENTION_SCAN_MILLIS the writer looks
+ * through the room directories it has not opened and trims their files.
+ *
+ * Replays go out from the log files as they are: see Session.sendHistory().
+ */
+class ChatHistory {
+    static final int MAX_REPLAY_MESSAGES = 1000;
+    static final long MAX_REPLAY_BYTES = 512 * 1024;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024; // largest buffer queued for a client at once
+    private static final long RETENTION_SCAN_MILLIS = 60 * 1000;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retainBytes;
+    private final long retainMillis;
+    private final int maxOpenLogs;
+    private final ConcurrentHashMap<String, MessageLog> logs = new ConcurrentHashMap<>(); // Room -> log
+    private final BlockingQueue<Runnable> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY); // writer's work
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param directory    where to keep the logs, one subdirectory per room
+     * @param segmentBytes the size of each segment file
+     * @param retainBytes  the most bytes of history to keep per room
+     * @param retainMillis how long to keep history
+     * @param maxOpenLogs  the most room logs to keep open at once
+     */
+    ChatHistory(Path directory, long segmentBytes, long retainBytes, long retainMillis, int maxOpenLogs) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+        this.maxOpenLogs = Math.max(1, maxOpenLogs);
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    void start() {
+        Thread writer = new Thread(this::writeAll, "chat-history");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a chat line to be appended to a room's history. Never blocks.
+     */
+    void record(String room, String line) {
+        if (!pending.offer(() -> append(room, line))) {
+            if (dropped.getAndIncrement() % 10000 == 0) {
+                System.out.println("History writer is behind; " + dropped.get() + " lines left out so far.");
+            }
+        }
+    }
+
+    /**
+     * The writer thread: appends what is waiting, and opens logs for
+     * replays, in batches.
+     */
+    private void writeAll() {
+        List<Runnable> batch = new ArrayList<>();
+        long lastRetention = 0;
+        long lastScan = 0;
+        while (true) {
+            try {
+                Runnable first = pending.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Runnable work : batch) {
+                work.run();
+            }
+            batch.clear();
+            long now = System.currentTimeMillis();
+            if (now - lastRetention >= 1000) {
+                for (MessageLog log : logs.values()) {
+                    log.retain(retainBytes, retainMillis, now);
+                }
+                closeLeastUsed();
+                lastRetention = now;
+            }
+            if (now - lastScan >= RETENTION_SCAN_MILLIS) {
+                retainClosed(now);
+                lastScan = now;
+            }
+        }
+    }
+
+    /**
+     * Appends one line to a room's log. Runs on the writer thread.
+     */
+    private void append(String room, String line) {
+        MessageLog log = logFor(room, true);
+        if (log != null) {
+            try {
+                log.append(line);
+            } catch (IOException e) {
+                System.out.println("Could not write history of " + room + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies retention to the logs on disk that are not open: those closed
+     * for being least used, and those left by an earlier run. Runs on the
+     * writer thread, the only one that opens logs, so none of them can be
+     * opened meanwhile.
+     */
+    private void retainClosed(long now) {
+        Set<String> open = new HashSet<>();
+        for (String room : logs.keySet()) {
+            open.add(fileName(room));
+        }
+        try (DirectoryStream<Path> rooms = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path room : rooms) {
+                if (!open.contains(room.getFileName().toString())) {
+                    MessageLog.retainFiles(room, retainBytes, retainMillis, now);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing has been written yet
+        } catch (IOException e) {
+            System.out.println("Could not look through the history directory: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the least recently used logs while more than maxOpenLogs are
+     * open. Runs on the writer thread only, so no append can be under way on
+     * a log being closed; a replay that finds its log closed opens it again.
+     */
+    private void closeLeastUsed() {
+        int excess = logs.size() - maxOpenLogs;
+        if (excess <= 0) {
+            return;
+        }
+        // Snapshot the times first: they keep changing, and the sort needs them to hold still
+        List<Map.Entry<MessageLog, Long>> byUse = new ArrayList<>();
+        for (MessageLog log : logs.values()) {
+            byUse.add(new AbstractMap.SimpleImmutableEntry<>(log, log.lastUsedMillis()));
+        }
+        byUse.sort(Map.Entry.comparingByValue());
+        for (int i = 0; i < excess && i < byUse.size(); i++) {
+            MessageLog log = byUse.get(i).getKey();
+            if (logs.values().remove(log)) {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a room's log, opening it if an earlier run left one.
+     *
+     * @param create whether to start a log for a room that has none
+     * @return the log, or null if there is none or it cannot be opened
+     */
+    private MessageLog logFor(String room, boolean create) {
+        MessageLog log = logs.get(room);
+        if (log != null) {
+            return log;
+        }
+        Path path = directory.resolve(fileName(room));
+        if (!create && !Files.isDirectory(path)) {
+            return null;
+        }
+        return logs.computeIfAbsent(room, key -> {
+            try {
+                return new MessageLog(path, segmentBytes);
+            } catch (IOException e) {
+                System.out.println("Could not open history of " + room + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Turns a room name into a directory name that is safe on any file system:
+     * letters, digits, '-' and '_' stay, every other byte becomes %XX.
+     */
+    private static String fileName(String room) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : room.getBytes(StandardCharsets.UTF_8)) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_') {
+                name.append((char) b);
+            } else {
+                name.append(String.format("%%%02X", b & 0xFF));
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Sends a client the last messages of a room.
+     *
+     * @param count how many messages, at most MAX_REPLAY_MESSAGES
+     */
+    void replayLast(ChatServer.Session client, String room, int count) {
+        replay(client, room, 0, Math.min(count, MAX_REPLAY_MESSAGES));
+    }
+
+    /**
+     * Sends a client the messages of a room after the given ID, or the last
+     * MAX_REPLAY_MESSAGES of them if there are more.
+     */
+    void replayAfter(ChatServer.Session client, String room, long afterId) {
+        replay(client, room, afterId, 0);
+    }
+
+    /**
+     * Replays from the room's log if it is open, and otherwise has the writer
+     * open it first.
+     *
+     * @param last if positive, replay this many of the newest messages instead of those after afterId
+     */
+    private void replay(ChatServer.Session client, String room, long afterId, int last) {
+        MessageLog log = logs.get(room);
+        if (log != null) {
+            replay(client, room, log, afterId, last);
+            return;
+        }
+        Runnable open = () -> {
+            MessageLog opened = logFor(room, false);
+            client.runOnReader(() -> replay(client, room, opened, afterId, last));
+        };
+        if (!pending.offer(open)) {
+            client.sendMessage("The history is busy; try again in a moment.");
+        }
+    }
+
+    /**
+     * @param log the room's log, or null if it has none
+     */
+    private void replay(ChatServer.Session client, String room, MessageLog log, long afterId, int last) {
+        MessageLog.Replay replay = null;
+        if (log != null) {
+            long from = last > 0 ? log.lastId() - last : afterId;
+            replay = log.readAfter(from, MAX_REPLAY_MESSAGES, MAX_REPLAY_BYTES);
+            if (replay == null) {
+                replay(client, room, afterId, last); // closed meanwhile; have it opened again
+                return;
+            }
+            afterId = from;
+        }
+        if (replay == null || replay.isEmpty()) {
+            client.sendMessage(afterId <= 0 ? "No history in " + room + " yet."
+                    : "No messages in " + room + " after #" + afterId + ".");
+            return;
+        }
+        client.sendMessage("History of " + room + ", messages #" + replay.firstId + " to #" + replay.lastId + ":");
+        client.sendHistory(replay.regions);
+    }
+
+    /**
+     * Queues log regions for a client through its outbound queue, for
+     * engines that cannot send them from the file directly. A text client
+     * gets the records as they are, as read-only views of the mapped
+     * segments; a binary client gets them as NOTICE frames.
+     */
+    static void queueRegions(ChatServer.Session client, List<MessageLog.Region> regions) {
+        for (MessageLog.Region region : regions) {
+            ByteBuffer records = region.bytes();
+            if (!client.isBinary()) {
+                while (records.hasRemaining()) {
+                    ByteBuffer chunk = records.duplicate();
+                    chunk.limit(chunk.position() + Math.min(CHUNK_SIZE, chunk.remaining()));
+                    records.position(chunk.limit());
+                    client.send(chunk.slice());
+                }
+                continue;
+            }
+            ByteBuffer frames = ByteBuffer.allocate(CHUNK_SIZE);
+            byte[] line = new byte[256];
+            while (records.hasRemaining()) {
+                int length = 0;
+                byte b;
+                while ((b = records.get()) != '\n') {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = b;
+                }
+                ByteBuffer frame = ChatProtocol.frame(ChatProtocol.NOTICE, -1,
+                        new String(line, 0, length, StandardCharsets.UTF_8));
+                if (frame.remaining() > frames.remaining()) {
+                    frames.flip();
+                    client.send(frames.asReadOnlyBuffer());
+                    frames = ByteBuffer.allocate(Math.max(CHUNK_SIZE, frame.remaining()));
+                }
+                frames.put(frame);
+            }
+            frames.flip();
+            if (frames.hasRemaining()) {
+                client.send(frames.asReadOnlyBuffer());
+            }
+        }
+    }
+}
@@ -0,0 +1,767 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+/**
+ * This program measures the ChatServer engines under load. For each engine it
+ * starts a server in a child process and, against it:
+ * <ol>
+ *   <li>connects many clients, at a given rate or as fast as it can, and
+ *       times the ramp until every client has its greeting;</li>
+ *   <li>reports the memory and threads the server process uses per
+ *       connection;</li>
+ *   <li>times single broadcasts until they reach every client;</li>
+ *   <li>has some of the clients send messages of a given size at a steady
+ *       rate for a while, each carrying the time it was sent, and measures
+ *       how long every copy takes to reach the other clients (p50, p99,
+ *       p99.9), the deliveries per second, and how many never arrived;</li>
+ *   <li>closes some of the clients and connects them again, which with TLS
+ *       shows what resuming a session saves over the full handshake.</li>
+ * </ol>
+ * The clients speak the same protocol as ChatClient, text or binary, in
+ * plain text or over TLS. With --transports=plain,tls every engine is
+ * measured both ways, so the rows show what encryption costs in connection
+ * rate, memory per connection and latency. Unless given a keystore the test
+ * makes a self-signed one with keytool, and it trusts that certificate alone.
+ *
+ * All the clients live on one selector thread in this process, so the test
+ * itself stays small however many connections it opens, and every time stamp
+ * comes from the same clock. Latencies include the time this thread takes to
+ * get round to a client, so a test machine that is short of CPU shows up as
+ * latency too. Memory figures come from /proc and are only available on Linux.
+ *
+ * Compile together with the server and run, for example:
+ *     javac *.java
+ *     java ChatLoadTest --clients=5000 --engines=thread,virtual,nio
+ *     java ChatLoadTest --clients=1000 --rate=200 --payload=256 --duration=30 --csv=results.csv
+ *     java ChatLoadTest --clients=2000 --engines=nio --transports=plain,tls --reconnects=1000
+ * Options:
+ *     --clients=N      connections to open (default 2000)
+ *     --ramp=N         connections to open per second (default 0: as fast as possible)
+ *     --rounds=N       single broadcasts to time (default 50)
+ *     --rate=N         messages per second, from all senders together, in the steady phase (default 50; 0 skips it)
+ *                      (the server drops a sender's messages past its --message-rate, 20 a second by default)
+ *     --senders=N      clients sending in the steady phase (default 10)
+ *     --payload=N      bytes of text per message (default 64)
+ *     --duration=S     length of the steady phase in seconds (default 10)
+ *     --protocol=P     text or bin1 (default text)
+ *     --engines=LIST   engines to compare (default thread,virtual,nio)
+ *     --transports=L   plain, tls or both, each measured with every engine (default plain)
+ *     --tls-keystore=F the servers' PKCS12 keystore, also trusted by the clients (default: a new self-signed one)
+ *     --tls-password=P its password (default changeit)
+ *     --reconnects=N   clients to close and connect again after the steady phase (default 200; 0 skips it)
+ *     --port=N         port for the servers (default 12399)
+ *     --server-args=A  extra options for the servers, space-separated (default --history-dir=none)
+ *     --attach         test the server already running on --port instead of starting any
+ *     --csv=FILE       also append the results to FILE, one row per engine, to compare runs
+ */
+public class ChatLoadTest {
+    private static final String MARKER = "load-test ";
+    private static final String TIMED_MARKER = "load-ts "; // followed by the System.nanoTime() of sending
+    private static final long DRAIN_MILLIS = 5000; // how long to wait for stragglers after the steady phase
+
+    int clients = 2000;
+    int rampRate = 0;
+    int rounds = 50;
+    int rate = 50;
+    int senders = 10;
+    int payload = 64;
+    int durationSeconds = 10;
+    boolean binary = false;
+    int port = 12399;
+    String serverArgs = "--history-dir=none";
+    boolean attach = false;
+    String csv = null;
+    String tlsKeystore = null;
+    String tlsPassword = ChatTls.DEFAULT_PASSWORD;
+    int reconnects = 200;
+    private TrustManager[] tlsTrust; // for the clients' TLS contexts, one per simulated user
+    private final List<String> loadRows = new ArrayList<>();
+    private final List<String> reconnectRows = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        ChatLoadTest test = new ChatLoadTest();
+        List<String> engines = Arrays.asList("thread", "virtual", "nio");
+        List<String> transports = Arrays.asList("plain");
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                test.clients = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--ramp=")) {
+                test.rampRate = Integer.parseInt(arg.substring("--ramp=".length()));
+            } else if (arg.startsWith("--rounds=")) {
+                test.rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            } else if (arg.startsWith("--rate=")) {
+                test.rate = Integer.parseInt(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--senders=")) {
+                test.senders = Math.max(1, Integer.parseInt(arg.substring("--senders=".length())));
+            } else if (arg.startsWith("--payload=")) {
+                test.payload = Integer.parseInt(arg.substring("--payload=".length()));
+            } else if (arg.startsWith("--duration=")) {
+                test.durationSeconds = Integer.parseInt(arg.substring("--duration=".length()));
+            } else if (arg.startsWith("--protocol=")) {
+                test.binary = arg.substring("--protocol=".length()).equals(ChatProtocol.BINARY);
+            } else if (arg.startsWith("--engines=")) {
+                engines = Arrays.asList(arg.substring("--engines=".length()).split(","));
+            } else if (arg.startsWith("--transports=")) {
+                transports = Arrays.asList(arg.substring("--transports=".length()).split(","));
+            } else if (arg.startsWith("--tls-keystore=")) {
+                test.tlsKeystore = arg.substring("--tls-keystore=".length());
+            } else if (arg.startsWith("--tls-password=")) {
+                test.tlsPassword = arg.substring("--tls-password=".length());
+            } else if (arg.startsWith("--reconnects=")) {
+                test.reconnects = Integer.parseInt(arg.substring("--reconnects=".length()));
+            } else if (arg.startsWith("--port=")) {
+                test.port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--server-args=")) {
+                test.serverArgs = arg.substring("--server-args=".length());
+            } else if (arg.equals("--attach")) {
+                test.attach = true;
+            } else if (arg.startsWith("--csv=")) {
+                test.csv = arg.substring("--csv=".length());
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+        if (test.clients < 2) {
+            System.out.println("--clients must be at least 2");
+            return;
+        }
+        test.senders = Math.min(test.senders, test.clients);
+        if (test.attach) {
+            engines = Arrays.asList("attached");
+        }
+        for (String transport : transports) {
+            if (!transport.equals("plain") && !transport.equals("tls")) {
+                System.out.println("Unknown transport: " + transport);
+                return;
+            }
+        }
+        if (transports.contains("tls")) {
+            if (test.tlsKeystore == null) {
+                if (test.attach) {
+                    System.out.println("--attach with TLS needs the server's --tls-keystore");
+                    return;
+                }
+                test.tlsKeystore = test.makeKeystore();
+            }
+            test.tlsTrust = ChatTls.trustManagers(test.tlsKeystore, test.tlsPassword);
+        }
+
+        System.out.printf("%d clients, %s protocol; steady phase: %d msg/s from %d senders, %d-byte messages, %d s%n%n",
+                test.clients, test.binary ? ChatProtocol.BINARY : "text", test.rate, test.senders, test.payload,
+                test.durationSeconds);
+        System.out.printf("%-11s %8s %11s %9s %12s %10s %9s %13s %13s%n", "engine", "clients", "connect ms",
+                "conn/s", "RSS MB", "KB/conn", "threads", "fan-out p50", "fan-out max");
+        for (String engine : engines) {
+            for (String transport : transports) {
+                test.run(engine, transport.equals("tls"));
+            }
+        }
+        if (test.rate > 0) {
+            System.out.println();
+            System.out.printf("%-11s %9s %13s %10s %10s %10s %10s %10s %9s%n", "engine", "sent/s", "delivered/s",
+                    "p50 ms", "p99 ms", "p99.9 ms", "max ms", "lost", "dropped");
+            for (String row : test.loadRows) {
+                System.out.println(row);
+            }
+        }
+        if (test.reconnects > 0) {
+            System.out.println();
+            System.out.printf("%-11s %10s %13s %9s %9s%n", "engine", "reconnects", "reconnect ms", "conn/s", "resumed");
+            for (String row : test.reconnectRows) {
+                System.out.println(row);
+            }
+        }
+    }
+
+    /**
+     * Makes a self-signed keystore for localhost in a temporary directory
+     * with the JDK's keytool, the way ChatTls describes.
+     *
+     * @return its path
+     */
+    private String makeKeystore() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("chat-load-tls").toFile();
+        File keystore = new File(dir, "chat-keystore.p12");
+        File log = new File(dir, "keytool.log");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+                "-keysize", "256", "-validity", "2", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keystore.getPath(), "-storepass", tlsPassword)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        int status = process.waitFor();
+        keystore.deleteOnExit();
+        log.deleteOnExit();
+        dir.deleteOnExit(); // runs last, once the files are gone
+        if (status != 0) {
+            throw new IOException("keytool failed: " + new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8));
+        }
+        return keystore.getPath();
+    }
+
+    /**
+     * Starts a server with the given engine, unless attached to one, measures
+     * it and stops it again.
+     *
+     * @param tls whether the server and clients use TLS
+     */
+    void run(String engine, boolean tls) throws Exception {
+        String label = tls ? engine + "/tls" : engine;
+        Process server = null;
+        if (!attach) {
+            File log = File.createTempFile("chat-load-" + engine, ".log");
+            log.deleteOnExit();
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                    "ChatServer", "--engine=" + engine, "--port=" + port));
+            for (String arg : serverArgs.trim().split("\\s+")) {
+                if (!arg.isEmpty()) {
+                    command.add(arg);
+                }
+            }
+            if (tls) {
+                command.add("--tls=" + tlsKeystore);
+                command.add("--tls-password=" + tlsPassword);
+            }
+            server = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(log)
+                    .start();
+        }
+        try {
+            waitForServer();
+            long pid = server == null ? -1 : pid(server);
+            long baseRss = rssKb(pid);
+
+            Selector selector = Selector.open();
+            List<Client> connected = new ArrayList<>(clients);
+            long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                if (rampRate > 0) {
+                    // Hold back until this connection's turn comes, reading meanwhile
+                    long due = start + (long) (i * 1e9 / rampRate);
+                    while (System.nanoTime() < due) {
+                        pump(selector, Math.max(1, (due - System.nanoTime()) / 1000000));
+                    }
+                }
+                // Each user has a TLS context of its own, as separate processes would, to keep its session in
+                SSLContext context = tls ? ChatTls.clientContext(tlsTrust) : null;
+                connected.add(new Client(selector, port, "user" + i, binary, context));
+                if (i % 256 == 255) {
+                    pump(selector, 0); // keep the greetings from piling up in the socket buffers
+                }
+            }
+            // A client counts as connected once its greeting arrives
+            while (countGreeted(connected) < clients) {
+                pump(selector, 10);
+            }
+            double connectMs = (System.nanoTime() - start) / 1e6;
+            Thread.sleep(500); // let the server register the last names
+
+            long rss = rssKb(pid);
+            long threads = procStatus(pid, "Threads:");
+
+            long[] fanOut = new long[rounds];
+            for (int round = 0; round < rounds; round++) {
+                for (Client client : connected) {
+                    client.received = false;
+                }
+                // Each round from another client, so no one sender runs into the server's --message-rate
+                Client sender = connected.get(round % clients);
+                long sent = System.nanoTime();
+                sender.send(MARKER + round);
+                int pending = clients - 1;
+                while (pending > 0) {
+                    pending -= pump(selector, 10);
+                }
+                fanOut[round] = System.nanoTime() - sent;
+            }
+            Arrays.sort(fanOut);
+
+            System.out.printf("%-11s %8d %11.0f %9.0f %12s %10s %9s %11.2fms %11.2fms%n", label, clients, connectMs,
+                    clients / (connectMs / 1000),
+                    rss < 0 ? "n/a" : String.format("%.1f", rss / 1024.0),
+                    rss < 0 ? "n/a" : String.format("%.1f", (rss - baseRss) / (double) clients),
+                    threads < 0 ? "n/a" : Long.toString(threads),
+                    rounds == 0 ? 0 : fanOut[fanOut.length / 2] / 1e6, rounds == 0 ? 0 : fanOut[fanOut.length - 1] / 1e6);
+
+            SteadyLoad load = rate > 0 ? steadyLoad(selector, connected) : null;
+            if (load != null) {
+                ChatMetrics.Histogram latency = load.latency;
+                loadRows.add(String.format("%-11s %9.1f %13.0f %10.2f %10.2f %10.2f %10.2f %10d %9d", label,
+                        load.sentPerSecond(), load.deliveredPerSecond(), latency.percentile(50) / 1e6,
+                        latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6, latency.max() / 1e6,
+                        load.lost(), load.dropped));
+            }
+            Reconnects again = reconnects > 0 ? reconnect(selector, connected) : null;
+            if (again != null) {
+                reconnectRows.add(String.format("%-11s %10d %13.0f %9.0f %9s", label, again.count, again.millis,
+                        again.count / (again.millis / 1000), tls ? Integer.toString(again.resumed) : "-"));
+            }
+            if (csv != null) {
+                appendCsv(engine, tls, connectMs, rss, baseRss, threads, fanOut, load, again);
+            }
+
+            for (Client client : connected) {
+                client.close();
+            }
+            selector.close();
+        } finally {
+            if (server != null) {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    /**
+     * The steady phase: the first senders clients take turns sending rate
+     * messages a second for durationSeconds, while every client reads. Each
+     * message is payload bytes of text starting with TIMED_MARKER and the time
+     * it was sent. Afterwards the test waits up to DRAIN_MILLIS for copies
+     * still on their way.
+     */
+    private SteadyLoad steadyLoad(Selector selector, List<Client> connected) throws IOException {
+        SteadyLoad load = new SteadyLoad();
+        for (Client client : connected) {
+            client.load = load;
+        }
+        char[] padding = new char[payload];
+        Arrays.fill(padding, 'x');
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1000000000L;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long due = (long) ((now - start) / 1e9 * rate);
+            while (load.sent < due) {
+                Client sender = connected.get((int) (load.sent % senders));
+                load.sent++;
+                if (sender.channel.isOpen()) {
+                    String stamp = TIMED_MARKER + System.nanoTime() + " ";
+                    sender.send(stamp + new String(padding, 0, Math.max(0, payload - stamp.length())));
+                    load.expected += load.open - 1;
+                }
+            }
+            pump(selector, 1);
+        }
+        long sendEnd = System.nanoTime();
+        long drainUntil = System.currentTimeMillis() + DRAIN_MILLIS;
+        while (load.delivered < load.expected && System.currentTimeMillis() < drainUntil) {
+            pump(selector, 10);
+        }
+        load.seconds = (Math.max(sendEnd, load.lastDelivery) - start) / 1e9;
+        load.sendSeconds = (sendEnd - start) / 1e9;
+        return load;
+    }
+
+    /**
+     * Closes the last reconnects clients, connects them again all at once and
+     * times it until every one has its greeting again. With TLS each new
+     * connection offers, from the same context, the session its predecessor
+     * made, and the count of those the server resumed shows it kept them.
+     */
+    private Reconnects reconnect(Selector selector, List<Client> connected) throws IOException {
+        Reconnects again = new Reconnects();
+        again.count = Math.min(reconnects, clients);
+        int first = clients - again.count;
+        for (int i = first; i < clients; i++) {
+            connected.get(i).close();
+        }
+        long start = System.nanoTime();
+        List<Client> reconnected = new ArrayList<>(again.count);
+        for (int i = first; i < clients; i++) {
+            Client client = new Client(selector, port, "user" + i, binary, connected.get(i).context);
+            connected.set(i, client);
+            reconnected.add(client);
+            if (i % 256 == 255) {
+                pump(selector, 0);
+            }
+        }
+        while (countGreeted(reconnected) < again.count) {
+            pump(selector, 10);
+        }
+        again.millis = (System.nanoTime() - start) / 1e6;
+        for (Client client : reconnected) {
+            if (client.resumed) {
+                again.resumed++;
+            }
+        }
+        return again;
+    }
+
+    /**
+     * The results of the reconnect phase.
+     */
+    private static final class Reconnects {
+        int count;      // clients reconnected
+        double millis;  // from the first connect to the last greeting
+        int resumed;    // TLS sessions resumed rather than negotiated afresh
+    }
+
+    /**
+     * The results of the steady phase, filled in as it runs.
+     */
+    private final class SteadyLoad {
+        final ChatMetrics.Histogram latency = new ChatMetrics.Histogram(); // nanoseconds from send to receipt
+        long sent = 0;          // messages sent
+        long expected = 0;      // copies that should arrive: one per other open client per message
+        long delivered = 0;     // copies that did arrive
+        long lastDelivery = 0;  // System.nanoTime() of the last copy
+        int open = clients;     // clients still connected
+        int dropped = 0;        // clients the server closed, e.g. as slow consumers
+        double seconds;         // from the first send to the last copy received
+        double sendSeconds;     // from the first send to the last
+
+        double sentPerSecond() {
+            return sendSeconds == 0 ? 0 : sent / sendSeconds;
+        }
+
+        double deliveredPerSecond() {
+            return seconds == 0 ? 0 : delivered / seconds;
+        }
+
+        long lost() {
+            return Math.max(0, expected - delivered);
+        }
+    }
+
+    /**
+     * Appends one row for an engine to the CSV file, writing the header first
+     * if the file is new.
+     */
+    private void appendCsv(String engine, boolean tls, double connectMs, long rss, long baseRss, long threads,
+            long[] fanOut, SteadyLoad load, Reconnects again) throws IOException {
+        File file = new File(csv);
+        boolean header = !file.exists() || file.length() == 0;
+        try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+            if (header) {
+                out.println("time,engine,protocol,clients,ramp_rate,connect_ms,rss_mb,kb_per_conn,threads,"
+                        + "fanout_p50_ms,fanout_max_ms,rate,senders,payload,duration_s,sent_per_s,delivered_per_s,"
+                        + "p50_ms,p99_ms,p999_ms,max_ms,lost,dropped_clients,transport,reconnects,reconnect_ms,resumed");
+            }
+            ChatMetrics.Histogram latency = load != null ? load.latency : new ChatMetrics.Histogram();
+            out.printf("%tFT%<tT,%s,%s,%d,%d,%.0f,%s,%s,%d,%.3f,%.3f,%d,%d,%d,%d,%.1f,%.0f,%.3f,%.3f,%.3f,%.3f,%d,%d,"
+                    + "%s,%d,%.0f,%d%n",
+                    new Date(), engine, binary ? ChatProtocol.BINARY : "text", clients, rampRate, connectMs,
+                    rss < 0 ? "" : String.format("%.1f", rss / 1024.0),
+                    rss < 0 ? "" : String.format("%.1f", (rss - baseRss) / (double) clients), threads,
+                    fanOut.length == 0 ? 0 : fanOut[fanOut.length / 2] / 1e6,
+                    fanOut.length == 0 ? 0 : fanOut[fanOut.length - 1] / 1e6, rate, senders, payload, durationSeconds,
+                    load == null ? 0 : load.sentPerSecond(), load == null ? 0 : load.deliveredPerSecond(),
+                    latency.percentile(50) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6,
+                    latency.max() / 1e6, load == null ? 0 : load.lost(), load == null ? 0 : load.dropped,
+                    tls ? "tls" : "plain", again == null ? 0 : again.count, again == null ? 0 : again.millis,
+                    again == null ? 0 : again.resumed);
+        }
+    }
+
+    private void waitForServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                SocketChannel.open(new InetSocketAddress("localhost", port)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static int countGreeted(List<Client> clients) {
+        int greeted = 0;
+        for (Client client : clients) {
+            if (client.greeted) {
+                greeted++;
+            }
+        }
+        return greeted;
+    }
+
+    /**
+     * Reads from every ready client.
+     *
+     * @return the number of clients that received the current broadcast in this pass
+     */
+    private static int pump(Selector selector, long timeoutMs) throws IOException {
+        if (timeoutMs == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(timeoutMs);
+        }
+        int received = 0;
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (((Client) key.attachment()).read()) {
+                received++;
+            }
+        }
+        return received;
+    }
+
+    /**
+     * One simulated chat client, with just enough of the protocol to send its
+     * name and messages and to notice its greeting, the test broadcasts and
+     * the timed messages.
+     */
+    private static class Client {
+        private static final ByteBuffer READ_BUFFER = ByteBuffer.allocateDirect(64 * 1024);
+        private static final TlsChannel.Buffers TLS_BUFFERS = new TlsChannel.Buffers();
+
+        final SocketChannel channel;
+        final SSLContext context; // or null for a plain connection
+        private final TlsChannel tls;
+        private final ByteChannel io; // tls, or the channel itself
+        private final long handshakeStart; // System.currentTimeMillis(), to tell resumed TLS sessions
+        boolean resumed = false; // whether the server resumed an earlier TLS session
+        private final String name;
+        private final boolean wantBinary;
+        private boolean binary = false;
+        boolean greeted = false;
+        boolean received = false;
+        SteadyLoad load; // set for the steady phase
+        private final StringBuilder line = new StringBuilder();
+        private ByteBuffer frames; // bytes of a frame split across reads, once binary
+
+        /**
+         * @param tls this user's TLS context, or null to connect in plain text
+         */
+        Client(Selector selector, int port, String name, boolean wantBinary, SSLContext tls) throws IOException {
+            this.context = tls;
+            this.name = name;
+            this.wantBinary = wantBinary;
+            handshakeStart = System.currentTimeMillis();
+            channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, this);
+            this.tls = tls == null ? null
+                    : new TlsChannel(channel, ChatTls.clientEngine(tls, "localhost", port), TLS_BUFFERS);
+            io = this.tls != null ? this.tls : channel;
+            if (!wantBinary && this.tls == null) {
+                send(name); // no need to wait for the greeting, as ChatClient does
+            }
+        }
+
+        /**
+         * Sends a line, or a SEND frame once binary.
+         */
+        void send(String text) throws IOException {
+            send(binary ? ChatProtocol.frame(ChatProtocol.SEND, -1, text)
+                    : ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void send(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                io.write(bytes);
+            }
+            while (tls != null && !tls.flush()) {
+                // The last records are still waiting for the socket
+            }
+        }
+
+        /**
+         * Closes the connection, with a TLS close_notify if it has one.
+         */
+        void close() throws IOException {
+            io.close();
+        }
+
+        /**
+         * @return true if this read completed the current broadcast for this client
+         */
+        boolean read() throws IOException {
+            boolean completed = readSome();
+            while (tls != null && channel.isOpen() && tls.hasBufferedInput()) {
+                completed |= readSome(); // whole records the selector cannot see
+            }
+            return completed;
+        }
+
+        private boolean readSome() throws IOException {
+            ByteBuffer buffer = READ_BUFFER;
+            buffer.clear();
+            int count;
+            try {
+                count = io.read(buffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                if (load == null) {
+                    throw new IOException("Server closed a test connection");
+                }
+                channel.close(); // dropped during the steady phase: counted, not fatal
+                load.open--;
+                load.dropped++;
+                return false;
+            }
+            buffer.flip();
+            boolean completed = false;
+            while (!binary && buffer.hasRemaining()) {
+                char c = (char) buffer.get(); // the test lines are ASCII
+                if (c != '\n') {
+                    line.append(c);
+                    continue;
+                }
+                if (!greeted) {
+                    greeted = true;
+                    greetingReceived();
+                } else if (chatReceived(line)) {
+                    completed = true;
+                }
+                line.setLength(0);
+            }
+            if (binary && buffer.hasRemaining()) {
+                completed |= framesReceived(buffer);
+            }
+            return completed;
+        }
+
+        /**
+         * Answers the greeting: with the switch to binary when asked for and
+         * offered, and then the name.
+         */
+        private void greetingReceived() throws IOException {
+            if (tls != null) {
+                resumed = ChatTls.resumed(tls.session(), handshakeStart);
+            }
+            if (!wantBinary) {
+                if (tls != null) {
+                    send(name); // a plain connection sent it at once, but TLS had to finish the handshake first
+                }
+                return;
+            }
+            if (line.toString().endsWith(ChatProtocol.OFFER_TAG)) {
+                send(ChatProtocol.SWITCH_LINE);
+                binary = true;
+                frames = ByteBuffer.allocate(64 * 1024);
+            }
+            send(name);
+        }
+
+        /**
+         * Handles the frames in the buffer, keeping a frame split across reads
+         * for the next one.
+         */
+        private boolean framesReceived(ByteBuffer buffer) throws IOException {
+            if (frames.remaining() < buffer.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(frames.capacity() * 2,
+                        frames.position() + buffer.remaining()));
+                frames.flip();
+                frames = larger.put(frames);
+            }
+            frames.put(buffer);
+            frames.flip();
+            boolean completed = false;
+            ByteBuffer frame;
+            while ((frame = ChatProtocol.nextFrame(frames)) != null) {
+                if (frame.get() == ChatProtocol.BATCH) {
+                    ByteBuffer inner;
+                    while ((inner = ChatProtocol.nextFrame(frame)) != null) {
+                        completed |= frameReceived(inner.get(), inner);
+                    }
+                } else {
+                    completed |= frameReceived(frame.get(0), frame);
+                }
+            }
+            frames.compact();
+            return completed;
+        }
+
+        private boolean frameReceived(byte type, ByteBuffer body) throws IOException {
+            if (type == ChatProtocol.PING) {
+                send(ChatProtocol.frame(ChatProtocol.PONG, -1, ""));
+                return false;
+            }
+            if (type != ChatProtocol.MESSAGE) {
+                return false; // names and notices
+            }
+            ChatProtocol.getVarint(body); // the sender
+            return chatReceived(ChatProtocol.text(body));
+        }
+
+        /**
+         * Handles a chat message, with or without the text protocol's sender prefix.
+         *
+         * @return true if it completed the current broadcast for this client
+         */
+        private boolean chatReceived(CharSequence text) {
+            String message = text.toString();
+            int timed = message.indexOf(TIMED_MARKER);
+            if (timed >= 0 && load != null) {
+                long now = System.nanoTime();
+                int from = timed + TIMED_MARKER.length();
+                int to = message.indexOf(' ', from);
+                load.latency.record(now - Long.parseLong(message.substring(from, to < 0 ? message.length() : to)));
+                load.delivered++;
+                load.lastDelivery = now;
+                return false;
+            }
+            if (!received && message.contains(MARKER)) {
+                received = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns the child's process ID. Process.pid() arrived in Java 9, so it is
+     * looked up at run time; -1 if unavailable.
+     */
+    private static long pid(Process process) {
+        try {
+            Method pid = Process.class.getMethod("pid");
+            return (Long) pid.invoke(process);
+        } catch (ReflectiveOperationException e) {
+            return -1;
+        }
+    }
+
+    private static long rssKb(long pid) {
+        return procStatus(pid, "VmRSS:");
+    }
+
+    /**
+     * Reads a numeric field from /proc/[pid]/status, or -1 if it cannot.
+     */
+    private static long procStatus(long pid, String field) {
+        if (pid < 0) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux, or the process is gone
+        }
+        return -1;
+    }
+}
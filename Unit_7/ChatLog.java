@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The server's console log for events that happen once per client or per
+ * message, which under load are far too many to print.
+ *
+ * Logging never waits on the console: log() puts the line on a bounded queue,
+ * and a "chat-log" thread prints whatever has piled up with one call to
+ * System.out, whose lock the client threads therefore never contend for. If
+ * the queue is full the line is dropped and counted.
+ *
+ * Each kind of event is also sampled: only the first RATE lines of a kind are
+ * kept in any one second, and the log thread then says how many it left out.
+ * Callers check first, so a line that will not be kept is never even built:
+ * <pre>
+ *   if (ChatLog.MESSAGES.sampled()) {
+ *       ChatLog.log("New message received from ...");
+ *   }
+ * </pre>
+ * The exact counts are in ChatMetrics.
+ */
+final class ChatLog {
+    static final Kind CONNECTIONS = new Kind("connection");
+    static final Kind MESSAGES = new Kind("message");
+    private static final Kind[] KINDS = {CONNECTIONS, MESSAGES};
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private static final BlockingQueue<String> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile int rate = 20;
+
+    private ChatLog() {
+    }
+
+    /**
+     * Sets how many lines of each kind are kept per second; 0 keeps none.
+     */
+    static void setRate(int linesPerSecond) {
+        rate = Math.max(0, linesPerSecond);
+    }
+
+    /**
+     * Starts the thread that prints the log.
+     */
+    static void start() {
+        Thread writer = new Thread(ChatLog::writeAll, "chat-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a line for the console. Never blocks.
+     */
+    static void log(String line) {
+        if (!pending.offer(line)) {
+            dropped.increment();
+        }
+    }
+
+    /** Lines dropped because the log thread was behind. */
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    private static void writeAll() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            try {
+                String first = pending.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (String line : batch) {
+                text.append(line).append(System.lineSeparator());
+            }
+            batch.clear();
+            for (Kind kind : KINDS) {
+                long skipped = kind.takeSkipped();
+                if (skipped > 0) {
+                    text.append("... ").append(skipped).append(' ').append(kind.name)
+                            .append(skipped == 1 ? " line" : " lines").append(" not logged.")
+                            .append(System.lineSeparator());
+                }
+            }
+            if (text.length() > 0) {
+                System.out.print(text);
+                System.out.flush();
+                text.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * One kind of event, sampled on its own.
+     */
+    static final class Kind {
+        private final String name;
+        private final AtomicLong second = new AtomicLong(); // the second the count is for
+        private final AtomicInteger kept = new AtomicInteger();
+        private final LongAdder skipped = new LongAdder();
+        private long lastReport = 0; // log thread only
+
+        private Kind(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns whether a line of this kind should be logged now. Lock-free;
+         * any thread may call it.
+         */
+        boolean sampled() {
+            int limit = rate;
+            if (limit == 0) {
+                return false;
+            }
+            long now = System.currentTimeMillis() / 1000;
+            long current = second.get();
+            if (now != current && second.compareAndSet(current, now)) {
+                kept.set(0);
+            }
+            if (kept.get() < limit && kept.incrementAndGet() <= limit) {
+                return true;
+            }
+            skipped.increment();
+            return false;
+        }
+
+        /** Takes the count of lines left out, at most once a second. */
+        private long takeSkipped() {
+            long now = System.currentTimeMillis();
+            if (now - lastReport < 1000) {
+                return 0;
+            }
+            lastReport = now;
+            return skipped.sumThenReset();
+        }
+    }
+}
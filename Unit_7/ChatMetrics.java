@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The server's counters and latency histograms.
+ *
+ * Every thread that handles a client bumps the counters here directly. They
+ * are LongAdders, which keep a cell per contending thread, so reactors and
+ * handler threads counting at once do not fight over one cache line; the
+ * cells are only summed when someone looks. Histograms work the same way: a
+ * record is one atomic increment of a bucket.
+ *
+ * The numbers can be read two ways, both built from the same snapshot():
+ * <pre>
+ *   http://127.0.0.1:PORT/metrics   plain text, one "name value" per line (Prometheus format),
+ *                                   with --metrics-port=PORT; it only listens on the loopback address
+ *   JMX bean ChatServer:type=Metrics one read-only attribute per metric, e.g. in jconsole
+ * </pre>
+ * A "chat-metrics" thread works out the per-second rates once a second.
+ */
+final class ChatMetrics {
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder connectionsClosed = new LongAdder();
+    static final LongAdder slowDisconnects = new LongAdder(); // clients dropped by the DISCONNECT overflow policy
+    static final LongAdder idleTimeouts = new LongAdder();    // clients dropped for sending no name or no PONG
+    static final LongAdder pingsSent = new LongAdder();
+    static final LongAdder rateLimited = new LongAdder();     // lines dropped for going over --message-rate
+    static final LongAdder readsPaused = new LongAdder();     // reads followed by a pause for going over --byte-rate
+    static final LongAdder oversizedInputs = new LongAdder(); // clients dropped for a line or frame over --max-line
+    static final LongAdder fanOutRefused = new LongAdder();   // messages refused for going over --fan-out-rate
+    static final LongAdder messagesIn = new LongAdder();      // chat messages from this node's clients
+    static final LongAdder commandsIn = new LongAdder();
+    static final LongAdder relayedIn = new LongAdder();       // chat messages from other nodes of the cluster
+    static final LongAdder messagesOut = new LongAdder();     // lines or frames queued for clients
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    /** Time from the start to the end of queueing one message for every member of its room, in nanoseconds. */
+    static final Histogram fanOutNanos = new Histogram();
+    /** Clients one message was queued for. */
+    static final Histogram fanOutRecipients = new Histogram();
+
+    private static final long START_MILLIS = System.currentTimeMillis();
+    private static volatile double acceptsPerSecond;
+    private static volatile double messagesInPerSecond;
+    private static volatile double messagesOutPerSecond;
+
+    private ChatMetrics() {
+    }
+
+    /**
+     * Starts the rate thread and registers the JMX bean.
+     */
+    static void start() {
+        Thread rates = new Thread(ChatMetrics::measureRates, "chat-metrics");
+        rates.setDaemon(true);
+        rates.start();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(),
+                    new ObjectName("ChatServer:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Could not register the metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the metrics over HTTP on the loopback address.
+     *
+     * @param port the port to listen on
+     */
+    static void startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start(); // on a thread of its own, which is not a daemon, like the acceptors
+        System.out.println("Metrics at http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port
+                + "/metrics");
+    }
+
+    private static void measureRates() {
+        long accepts = 0;
+        long in = 0;
+        long out = 0;
+        long last = System.nanoTime();
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            double seconds = (now - last) / 1e9;
+            long newAccepts = connectionsAccepted.sum();
+            long newIn = messagesIn.sum();
+            long newOut = messagesOut.sum();
+            acceptsPerSecond = (newAccepts - accepts) / seconds;
+            messagesInPerSecond = (newIn - in) / seconds;
+            messagesOutPerSecond = (newOut - out) / seconds;
+            accepts = newAccepts;
+            in = newIn;
+            out = newOut;
+            last = now;
+        }
+    }
+
+    /**
+     * Reads every metric, in a fixed order. Queue depths are gathered from the
+     * connected clients' queues as they are now.
+     *
+     * @return metric name to value, either a Long or a Double
+     */
+    static Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("chat_uptime_seconds", (System.currentTimeMillis() - START_MILLIS) / 1000L);
+        values.put("chat_clients", (long) ChatServer.clientCount());
+        values.put("chat_connections_accepted_total", connectionsAccepted.sum());
+        values.put("chat_connections_closed_total", connectionsClosed.sum());
+        values.put("chat_accepts_per_second", acceptsPerSecond);
+        values.put("chat_slow_disconnects_total", slowDisconnects.sum());
+        values.put("chat_idle_timeouts_total", idleTimeouts.sum());
+        values.put("chat_pings_sent_total", pingsSent.sum());
+        values.put("chat_rate_limited_total", rateLimited.sum());
+        values.put("chat_reads_paused_total", readsPaused.sum());
+        values.put("chat_oversized_inputs_total", oversizedInputs.sum());
+        values.put("chat_fan_out_refused_total", fanOutRefused.sum());
+        values.put("chat_messages_in_total", messagesIn.sum());
+        values.put("chat_messages_in_per_second", messagesInPerSecond);
+        values.put("chat_commands_in_total", commandsIn.sum());
+        values.put("chat_relayed_in_total", relayedIn.sum());
+        values.put("chat_messages_out_total", messagesOut.sum());
+        values.put("chat_messages_out_per_second", messagesOutPerSecond);
+        values.put("chat_bytes_in_total", bytesIn.sum());
+        values.put("chat_bytes_out_total", bytesOut.sum());
+        long queued = 0;
+        long queuedBytes = 0;
+        long deepest = 0;
+        long dropped = 0;
+        for (ChatServer.Session client : ChatServer.sessions()) {
+            OutboundQueue queue = client.getOutboundQueue();
+            int depth = queue.depth();
+            queued += depth;
+            queuedBytes += queue.bytes();
+            deepest = Math.max(deepest, depth);
+            dropped += queue.dropped();
+        }
+        values.put("chat_queue_lines", queued);
+        values.put("chat_queue_bytes", queuedBytes);
+        values.put("chat_queue_max_depth", deepest);
+        values.put("chat_queue_dropped_lines", dropped);
+        values.put("chat_log_lines_dropped_total", ChatLog.dropped());
+        fanOutNanos.addTo(values, "chat_fan_out_nanos");
+        fanOutRecipients.addTo(values, "chat_fan_out_recipients");
+        return values;
+    }
+
+    /**
+     * Renders the snapshot as text, one "name value" line per metric.
+     */
+    static String text() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> metric : snapshot().entrySet()) {
+            text.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * A histogram of non-negative longs in log-linear buckets, in the manner
+     * of HdrHistogram: each power of two is split into SUB_BUCKETS equal
+     * buckets, so any value is known to within 1/SUB_BUCKETS of itself
+     * (about 6%) from 0 to Long.MAX_VALUE in under a thousand counters.
+     * Recording is lock-free and safe from any thread; a percentile read
+     * while others record may be off by the records in flight.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            long seen;
+            while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+            }
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // at least SUB_BITS
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /** The largest value that falls in a bucket. */
+        private static long highestIn(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        /**
+         * Returns the value below which the given percentage of the records fall.
+         */
+        long percentile(double percent) {
+            long total = count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percent / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestIn(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        double mean() {
+            long total = count.sum();
+            return total == 0 ? 0 : (double) sum.sum() / total;
+        }
+
+        /**
+         * Adds the histogram's summary to a snapshot: its count, mean, max and
+         * percentiles, e.g. name_p99.
+         */
+        void addTo(Map<String, Number> values, String name) {
+            values.put(name + "_count", count());
+            values.put(name + "_mean", mean());
+            for (double percent : PERCENTILES) {
+                String label = percent == Math.rint(percent) ? Long.toString((long) percent)
+                        : Double.toString(percent).replace(".", "");
+                values.put(name + "_p" + label, percentile(percent));
+            }
+            values.put(name + "_max", max());
+        }
+    }
+
+    /**
+     * The JMX view of the metrics. A DynamicMBean rather than a standard one,
+     * so its attributes are simply whatever snapshot() holds.
+     */
+    private static final class MetricsBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            Number value = snapshot().get(name);
+            if (value == null) {
+                throw new AttributeNotFoundException(name);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Number> values = snapshot();
+            AttributeList attributes = new AttributeList();
+            for (String name : names) {
+                if (values.containsKey(name)) {
+                    attributes.add(new Attribute(name, values.get(name)));
+                }
+            }
+            return attributes;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(action);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> metric : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(),
+                        metric.getKey(), true, false, false));
+            }
+            return new MBeanInfo(ChatMetrics.class.getName(), "Chat server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
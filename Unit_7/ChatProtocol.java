@@ -0,0 +1,265 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The binary chat protocol, "bin1", shared by the server engines and the client.
+ *
+ * A connection starts in the original text protocol. The server's greeting
+ * line ends with the tag "[proto: bin1]"; a client that understands it answers
+ * with the line "/proto bin1" before sending its name, and from then on both
+ * directions carry frames instead of lines. Old clients never send the line
+ * and keep talking text, and new clients talking to an old server see no tag
+ * and stay on text too.
+ *
+ * Every frame is
+ * <pre>
+ *   varint  length of what follows (type and body)
+ *   byte    type
+ *   body
+ * </pre>
+ * with these types:
+ * <pre>
+ *   MESSAGE  server to client   varint sender ID, UTF-8 text: a chat line from another client
+ *   PRIVATE  server to client   varint sender ID, UTF-8 text: a private message
+ *   NOTICE   server to client   UTF-8 text: anything the server itself says
+ *   NAME     server to client   varint client ID, UTF-8 name: sent once per sender before its first
+ *                               message to a client, so messages need only carry the ID
+ *   SEND     client to server   UTF-8 text: the name first, then chat lines and commands
+ *   BATCH    either way         any number of complete frames back to back
+ *   PING     server to client   empty: sent when the client has been quiet for a while
+ *   PONG     client to server   empty: the answer to a PING
+ * </pre>
+ * A client that has answered a PING once is expected to keep answering, and
+ * is disconnected when it goes quiet for too long; one that never has is left
+ * to TCP keepalive, like a text client.
+ * Varints are unsigned LEB128: seven bits per byte, low bits first, the high
+ * bit set on every byte but the last.
+ */
+final class ChatProtocol {
+    static final String BINARY = "bin1";
+    static final String OFFER_TAG = "[proto: " + BINARY + "]";
+    static final String SWITCH_LINE = "/proto " + BINARY;
+
+    static final byte MESSAGE = 1;
+    static final byte PRIVATE = 2;
+    static final byte NOTICE = 3;
+    static final byte NAME = 4;
+    static final byte SEND = 5;
+    static final byte BATCH = 6;
+    static final byte PING = 7;
+    static final byte PONG = 8;
+
+    /** Longest frame accepted; a batch of a full outbound queue fits with room to spare. */
+    static final int MAX_FRAME_LENGTH = 4 * 1024 * 1024;
+
+    private ChatProtocol() {
+    }
+
+    /**
+     * Encodes a frame whose body is an optional varint followed by text.
+     *
+     * @param id the varint to lead the body with, or -1 for none
+     * @return a read-only buffer holding the whole frame
+     */
+    static ByteBuffer frame(byte type, int id, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + (id >= 0 ? varintSize(id) : 0) + utf8.length;
+        int size = varintSize(length) + length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        putVarint(buffer, length);
+        buffer.put(type);
+        if (id >= 0) {
+            putVarint(buffer, id);
+        }
+        buffer.put(utf8);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Turns frames about to be written together into one BATCH frame, by
+     * putting a BATCH header in front of them; the frames themselves go on
+     * the wire unchanged. A single frame is left as it is.
+     */
+    static void wrapBatch(List<ByteBuffer> frames) {
+        if (frames.size() < 2) {
+            return;
+        }
+        long total = 0;
+        for (ByteBuffer frame : frames) {
+            total += frame.remaining();
+        }
+        if (total + 1 > MAX_FRAME_LENGTH) {
+            return; // too big for one frame; they go out separately
+        }
+        int length = 1 + (int) total;
+        ByteBuffer header = ByteBuffer.allocate(varintSize(length) + 1);
+        putVarint(header, length);
+        header.put(BATCH);
+        header.flip();
+        frames.add(0, header);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a varint, advancing the buffer past it.
+     *
+     * @throws IOException if it runs past five bytes
+     */
+    static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static String text(ByteBuffer body) {
+        if (body.hasArray()) {
+            String text = new String(body.array(), body.arrayOffset() + body.position(), body.remaining(),
+                    StandardCharsets.UTF_8);
+            body.position(body.limit());
+            return text;
+        }
+        byte[] utf8 = new byte[body.remaining()];
+        body.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Takes the next whole frame off the front of a buffer, without copying.
+     *
+     * @return the frame from its type byte to the end of its body, or null if
+     *         the buffer does not yet hold all of it (the buffer is then left
+     *         untouched)
+     * @throws IOException if the frame is malformed or too long
+     */
+    static ByteBuffer nextFrame(ByteBuffer buffer) throws IOException {
+        return nextFrame(buffer, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Takes the next whole frame off the front of a buffer, refusing one
+     * longer than a limit as soon as its length has arrived.
+     *
+     * @param maxLength the longest frame to accept, at most MAX_FRAME_LENGTH
+     * @throws TooLongException if the frame is longer than maxLength
+     */
+    static ByteBuffer nextFrame(ByteBuffer buffer, int maxLength) throws IOException {
+        int start = buffer.position();
+        int length = 0;
+        int position = start;
+        for (int shift = 0; ; shift += 7) {
+            if (position == buffer.limit()) {
+                return null;
+            }
+            if (shift >= 35) {
+                throw new IOException("Malformed frame length");
+            }
+            byte b = buffer.get(position++);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        checkLength(length, maxLength);
+        if (buffer.limit() - position < length) {
+            return null;
+        }
+        ByteBuffer frame = buffer.duplicate();
+        frame.position(position).limit(position + length);
+        buffer.position(position + length);
+        return frame.slice();
+    }
+
+    /**
+     * Reads one whole frame from a stream.
+     *
+     * @return the frame from its type byte on, or null at a clean end of stream
+     */
+    static ByteBuffer readFrame(InputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Reads one whole frame from a stream, refusing one longer than a limit
+     * before reading or allocating any of it.
+     *
+     * @param maxLength the longest frame to accept, at most MAX_FRAME_LENGTH
+     * @throws TooLongException if the frame is longer than maxLength
+     */
+    static ByteBuffer readFrame(InputStream in, int maxLength) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException("Stream ended inside a frame");
+            }
+            if (shift >= 35) {
+                throw new IOException("Malformed frame length");
+            }
+            length |= (b & 0x7F) << shift;
+            if (b < 0x80) {
+                break;
+            }
+        }
+        checkLength(length, maxLength);
+        byte[] frame = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(frame, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            read += count;
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static void checkLength(int length, int maxLength) throws IOException {
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        if (length > maxLength) {
+            throw new TooLongException("Frame of " + length + " bytes, over the limit of " + maxLength);
+        }
+    }
+
+    /**
+     * Thrown when a line or frame from the other side is longer than it may
+     * be, so the connection can be dropped before any more of it is buffered.
+     */
+    static final class TooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLongException(String message) {
+            super(message);
+        }
+    }
+}
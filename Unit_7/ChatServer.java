@@ -1,154 +1,1515 @@
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
 
 /**
  * This class implements the chat server using socket programming.
- * It handles multiple client connections, assigns unique IDs, maintains a list of connected clients,
+ * It handles multiple client connections, assigns unique IDs, maintains a registry of connected clients,
  * and broadcasts messages to all connected clients.
  * 
+ * Clients start in the lobby and can move between rooms; a message only goes to the sender's room.
+ * Besides chat lines a client can send these commands:
+ *     /join <room>          move to another room, creating it if needed
+ *     /leave                go back to the lobby
+ *     /msg <name> <text>    send a private message to one client (or /msg #<id> <text>)
+ *     /history [n]          replay the last n messages of the room (default 20)
+ *     /since <id>           replay the room's messages after message #id
+ *     /ping                 keep a quiet text connection from timing out; the server answers "pong"
+ * 
+ * Chat messages are kept per room in a MessageLog under --history-dir, written by a background thread,
+ * so a client that reconnects can catch up on what it missed.
+ * 
+ * Several servers can run as one cluster (see ChatCluster): each relays the messages and room notices
+ * of its own clients to the others, so a client sees the same conversation whichever node it uses.
+ * 
+ * Two engines can serve the connections, chosen at startup:
+ *     java ChatServer                  one thread per client (the default)
+ *     java ChatServer --engine=virtual one virtual thread per client (Java 21 or later)
+ *     java ChatServer --engine=nio     a few selector threads for all clients, see NioChatEngine
+ * All of them speak the same protocol and share the client list, broadcast and message handling below.
+ * 
+ * Connections start in the original line protocol. A client that answers the greeting's "[proto: bin1]"
+ * offer switches to the binary framing described in ChatProtocol, where a message carries its sender's ID
+ * instead of the "New message from <name>(ID n): " prefix and several frames can share one BATCH frame.
+ * Old clients never ask and keep receiving text lines.
+ * 
+ * A broadcast never writes to a socket itself: it only adds the line to each recipient's bounded
+ * OutboundQueue, and each client's own writer empties its queue. One slow client therefore only ever
+ * delays itself, and --overflow decides what happens once it falls too far behind.
+ * 
+ * The server times out clients that have gone quiet (see checkIdle()): one that sends no name within
+ * --login-timeout is dropped, a binary client is sent a PING after --ping-interval of silence and dropped
+ * if it has not answered by --idle-timeout, and a text client is dropped after --text-idle-timeout without
+ * input. TCP keepalive probes also catch clients whose machine has vanished. All of it runs on one
+ * TimerWheel, at one timeout per client.
+ * 
+ * No client can flood the server: each may send --message-rate lines a second, and lines over that are
+ * dropped with a notice; reading from a client pauses once it goes past --byte-rate, so TCP slows it down;
+ * a line or frame longer than --max-line gets it disconnected instead of buffered. --fan-out-rate caps the
+ * deliveries per second of the whole node, and messages over it are refused. Each check is a few
+ * arithmetic operations on state only the client's reader touches, or one atomic add for the node's budget.
+ * 
+ * With --tls=KEYSTORE clients connect over TLS (see ChatTls for making a keystore). The thread engines use
+ * SSLServerSocket; the nio engine runs an SSLEngine per connection on its reactors (see TlsChannel). Either
+ * way the server remembers sessions for a day, so a client that reconnects skips the full handshake.
+ * Cluster links stay plain: nodes are expected to share a private network.
+ * 
+ * Connections, messages and disconnections are logged through ChatLog, which samples them and prints from a
+ * thread of its own; ChatMetrics counts all of them, and --metrics-port serves the counts over HTTP.
+ * 
  * @author [Anh Tuan Ho]
  */
 public class ChatServer {
     private static final int PORT = 12345; // Port on which the server listens
-    private static CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>(); // Thread-safe list of clients
-    private static int nextId = 1; // Counter for assigning unique client IDs
+    static final int ACCEPT_BACKLOG = 4096; // Connections the OS may queue before we accept them
+    private static ConcurrentHashMap<Integer, Session> clients = new ConcurrentHashMap<>(); // ID -> client
+    private static final AtomicInteger clientCount = new AtomicInteger(); // Exact count, for the log lines
+    private static final String LOBBY = "lobby"; // The room every client starts in
+    static final int MAX_ROOM_NAME_BYTES = 80; // Even escaped as a history directory name, this fits in 255 bytes
+    private static ConcurrentHashMap<String, Set<Session>> rooms = new ConcurrentHashMap<>(); // Room -> members
+    private static ConcurrentHashMap<String, Session> clientsByName = new ConcurrentHashMap<>(); // For /msg
+    private static final AtomicInteger nextId = new AtomicInteger(1); // Counter for assigning unique client IDs
+    private static int idStride = 1; // Gap between this node's IDs: the cluster size
+    private static final long MAX_QUEUED_BYTES = 1024 * 1024; // Output allowed to wait for one client
+    private static int queueLimit = 1000; // Lines allowed to wait for one client
+    private static OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DISCONNECT;
+    private static ChatHistory history; // Message logs per room, or null when disabled
+    private static ChatCluster cluster; // Links to the other nodes, or null when running alone
+    private static SSLContext tls; // The server's TLS context, or null for plain connections
+    static final TimerWheel timers = new TimerWheel(100, 512); // Login, ping and idle timeouts, read pauses
+    private static long loginTimeoutMillis = 30000; // Time allowed to send a name; 0 for no limit
+    private static long pingIntervalMillis = 30000; // Silence after which a client is pinged; 0 for never
+    private static long idleTimeoutMillis = 90000; // Silence, with a PING unanswered, after which a binary client is dropped
+    private static long textIdleTimeoutMillis = 600000; // Silence after which a text client is dropped; 0 for never
+    private static final ByteBuffer PING = ChatProtocol.frame(ChatProtocol.PING, -1, "");
+    private static int maxLineBytes = 16 * 1024; // Longest line, or frame, a client may send
+    private static long messageRate = 20; // Lines per second from one client, in bursts of twice that; 0 for no limit
+    private static long byteRate = 64 * 1024; // Bytes per second read from one client, likewise
+    private static long fanOutRate = 0; // Deliveries per second for this node, in bursts of that; 0 for no limit
+    private static final AtomicLong fanOutTokens = new AtomicLong(); // Left of the fan-out budget; may go below 0
+    private static long fanOutRefilledAt = 0; // Timer wheel time of the last top-up; timer thread only
+
+    /**
+     * A connected client as seen by the rest of the server, whichever engine serves it. The engine
+     * provides the transport; the state every client has, and its outbound queue, live here.
+     */
+    abstract static class Session {
+        private final int id;
+        private volatile String name;
+        private volatile String room;
+        private final OutboundQueue outbound = newOutboundQueue();
+        private boolean named = false; // whether the first line, the client's name, has arrived; reader only
+        private volatile boolean binary = false; // whether the client switched to ChatProtocol frames
+        private Set<Integer> announced; // senders whose NAME frame the client has had, once binary
+        private final long connectedAt = timers.now();
+        private final TokenBucket lineTokens = new TokenBucket(messageRate, 2 * messageRate, connectedAt); // reader only
+        private final TokenBucket byteTokens = new TokenBucket(byteRate, 2 * byteRate, connectedAt); // reader only
+        private boolean refused = false; // whether it was told its messages are being refused; reader only
+        private volatile long lastInput = connectedAt; // timer wheel time the client last sent something
+        private volatile long lastPing = 0; // timer wheel time of the last PING; set by the timer thread only
+        private volatile TimerWheel.Timeout idleCheck;
+
+        Session(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name != null ? name : "Unknown";
+        }
+
+        /**
+         * Returns the room the client is in, or null before it has sent its name.
+         * 
+         * @return The client's room.
+         */
+        public String getRoom() {
+            return room;
+        }
+
+        /**
+         * Returns the queue of lines waiting to be written to the client.
+         * 
+         * @return The client's outbound queue.
+         */
+        OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+
+        /**
+         * Queues one encoded line for the client. The buffer may be shared with other recipients, so it
+         * must not be modified.
+         * 
+         * @param line The line, including its terminator, as returned by encode().
+         */
+        void send(ByteBuffer line) {
+            if (outbound.offer(line)) {
+                ChatMetrics.messagesOut.increment();
+                lineQueued();
+            } else {
+                disconnect(); // too slow to keep up
+            }
+        }
+
+        /**
+         * Queues one message from the server itself for the client, as a line or a NOTICE frame.
+         * 
+         * @param message The message to send, without a line terminator.
+         */
+        void sendMessage(String message) {
+            send(binary ? ChatProtocol.frame(ChatProtocol.NOTICE, -1, message) : encode(message));
+        }
+
+        /**
+         * Sends the client messages replayed from the history. This default queues them like any other
+         * output; an engine that can send them from the log files directly overrides it. Only the thread
+         * reading from the client, or a task passed to runOnReader(), calls it.
+         * 
+         * @param regions The log regions holding the messages, oldest first.
+         */
+        void sendHistory(List<MessageLog.Region> regions) {
+            ChatHistory.queueRegions(this, regions);
+        }
+
+        /**
+         * Runs a task, from another thread, where it may do what the thread reading from the client does,
+         * such as calling sendHistory(). This default runs it at once, since the default sendHistory()
+         * only queues; an engine whose overrides need its own thread hands the task over to it.
+         * 
+         * @param task The task.
+         */
+        void runOnReader(Runnable task) {
+            task.run();
+        }
+
+        /**
+         * Returns whether the client speaks the binary protocol.
+         * 
+         * @return True once the client has switched to frames.
+         */
+        boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * Switches the client to binary frames, in both directions. Nothing is queued for a client before
+         * it has sent its name, so no text line can follow the switch.
+         */
+        private void switchToBinary() {
+            announced = ConcurrentHashMap.newKeySet();
+            outbound.setDropListener(announced::clear); // a dropped NAME frame must be sent again
+            outbound.setNoticeEncoder(notice -> ChatProtocol.frame(ChatProtocol.NOTICE, -1, notice));
+            binary = true;
+        }
+
+        /**
+         * Records that the client is about to be told a sender's name.
+         * 
+         * @param senderId The ID of the client whose message is on its way.
+         * @return True if the client has not had that sender's NAME frame yet.
+         */
+        private boolean announce(int senderId) {
+            return announced.add(senderId);
+        }
+
+        /**
+         * Records that something arrived from the client, which keeps it from timing out. The engines call
+         * it for every read; it costs two volatile accesses.
+         */
+        void inputReceived() {
+            lastInput = timers.now();
+        }
+
+        /**
+         * Counts bytes read from the client against --byte-rate. The engines call it for every read, and
+         * stop reading from the client for as long as it says.
+         * 
+         * @param count The number of bytes just read.
+         * @return How many milliseconds to wait before reading from the client again, or 0 to go on.
+         */
+        long bytesReceived(int count) {
+            ChatMetrics.bytesIn.add(count);
+            long wait = byteTokens.take(count, timers.now());
+            if (wait > 0) {
+                ChatMetrics.readsPaused.increment();
+            }
+            return wait;
+        }
+
+        /**
+         * Called after a line has been queued, to wake the client's writer if it needs waking.
+         */
+        abstract void lineQueued();
+
+        /**
+         * Closes the connection from any thread. The engine then removes the client as usual.
+         */
+        abstract void disconnect();
+    }
 
     public static void main(String[] args) {
+        String engine = "thread";
+        int port = PORT;
+        int reactors = Runtime.getRuntime().availableProcessors();
+        int acceptors = 1;
+        int statsSeconds = 0;
+        int metricsPort = 0;
+        String historyDir = "chat-history";
+        long historySegmentMb = 16;
+        long historyRetainMb = 256;
+        long historyRetainHours = 24 * 7;
+        int historyOpenRooms = 128;
+        String clusterNodes = null;
+        String clusterSecret = null;
+        int node = 0;
+        String keystore = null;
+        String keystorePassword = ChatTls.DEFAULT_PASSWORD;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--reactors=")) {
+                reactors = Integer.parseInt(arg.substring("--reactors=".length()));
+            } else if (arg.startsWith("--acceptors=")) {
+                acceptors = Math.max(1, Integer.parseInt(arg.substring("--acceptors=".length())));
+            } else if (arg.startsWith("--queue-limit=")) {
+                queueLimit = Integer.parseInt(arg.substring("--queue-limit=".length()));
+            } else if (arg.startsWith("--overflow=")) {
+                overflowPolicy = OutboundQueue.OverflowPolicy.parse(arg.substring("--overflow=".length()));
+            } else if (arg.startsWith("--queue-stats=")) {
+                statsSeconds = Integer.parseInt(arg.substring("--queue-stats=".length()));
+            } else if (arg.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            } else if (arg.startsWith("--log-rate=")) {
+                ChatLog.setRate(Integer.parseInt(arg.substring("--log-rate=".length())));
+            } else if (arg.startsWith("--login-timeout=")) {
+                loginTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(arg.substring("--login-timeout=".length())));
+            } else if (arg.startsWith("--ping-interval=")) {
+                pingIntervalMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(arg.substring("--ping-interval=".length())));
+            } else if (arg.startsWith("--idle-timeout=")) {
+                idleTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(arg.substring("--idle-timeout=".length())));
+            } else if (arg.startsWith("--text-idle-timeout=")) {
+                textIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(arg.substring("--text-idle-timeout=".length())));
+            } else if (arg.startsWith("--max-line=")) {
+                maxLineBytes = Integer.parseInt(arg.substring("--max-line=".length()));
+            } else if (arg.startsWith("--message-rate=")) {
+                messageRate = Long.parseLong(arg.substring("--message-rate=".length()));
+            } else if (arg.startsWith("--byte-rate=")) {
+                byteRate = Long.parseLong(arg.substring("--byte-rate=".length()));
+            } else if (arg.startsWith("--fan-out-rate=")) {
+                fanOutRate = Long.parseLong(arg.substring("--fan-out-rate=".length()));
+            } else if (arg.startsWith("--tls=")) {
+                keystore = arg.substring("--tls=".length());
+            } else if (arg.startsWith("--tls-password=")) {
+                keystorePassword = arg.substring("--tls-password=".length());
+            } else if (arg.startsWith("--history-dir=")) {
+                historyDir = arg.substring("--history-dir=".length());
+            } else if (arg.startsWith("--history-segment-mb=")) {
+                historySegmentMb = Long.parseLong(arg.substring("--history-segment-mb=".length()));
+            } else if (arg.startsWith("--history-retain-mb=")) {
+                historyRetainMb = Long.parseLong(arg.substring("--history-retain-mb=".length()));
+            } else if (arg.startsWith("--history-retain-hours=")) {
+                historyRetainHours = Long.parseLong(arg.substring("--history-retain-hours=".length()));
+            } else if (arg.startsWith("--history-open-rooms=")) {
+                historyOpenRooms = Integer.parseInt(arg.substring("--history-open-rooms=".length()));
+            } else if (arg.startsWith("--cluster=")) {
+                clusterNodes = arg.substring("--cluster=".length());
+            } else if (arg.startsWith("--cluster-secret=")) {
+                clusterSecret = arg.substring("--cluster-secret=".length());
+            } else if (arg.startsWith("--node=")) {
+                node = Integer.parseInt(arg.substring("--node=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+                System.out.println("Usage: java ChatServer [--engine=thread|virtual|nio] [--port=N] [--reactors=N]");
+                System.out.println("                       [--acceptors=N]");
+                System.out.println("                       [--queue-limit=LINES] [--overflow=disconnect|drop-oldest|coalesce]");
+                System.out.println("                       [--queue-stats=SECONDS] [--metrics-port=N] [--log-rate=LINES]");
+                System.out.println("                       [--login-timeout=SECONDS] [--ping-interval=SECONDS] [--idle-timeout=SECONDS]");
+                System.out.println("                       [--text-idle-timeout=SECONDS]");
+                System.out.println("                       [--max-line=BYTES] [--message-rate=N] [--byte-rate=BYTES] [--fan-out-rate=N]");
+                System.out.println("                       [--tls=KEYSTORE.p12] [--tls-password=PASSWORD]");
+                System.out.println("                       [--history-dir=DIR|none] [--history-segment-mb=N]");
+                System.out.println("                       [--history-retain-mb=N] [--history-retain-hours=N] [--history-open-rooms=N]");
+                System.out.println("                       [--cluster=HOST:PORT,HOST:PORT,... --node=K] [--cluster-secret=SECRET]");
+                return;
+            }
+        }
+        if (clusterNodes != null) {
+            try {
+                cluster = new ChatCluster(node, clusterNodes.split(","), clusterSecret);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Bad cluster settings: " + e.getMessage());
+                return;
+            }
+            nextId.set(node + 1);
+            idStride = cluster.size();
+            if (historyDir.equals("chat-history")) {
+                historyDir = "chat-history-node" + node; // nodes on one machine must not share a log
+            }
+        }
+        ChatLog.start();
+        ChatMetrics.start();
+        timers.start();
+        if (fanOutRate > 0) {
+            fanOutTokens.set(fanOutRate);
+            refillFanOut();
+        }
+        if (statsSeconds > 0) {
+            startQueueStats(statsSeconds);
+        }
+        if (!historyDir.isEmpty() && !historyDir.equals("none")) {
+            history = new ChatHistory(Paths.get(historyDir), historySegmentMb * 1024 * 1024,
+                    historyRetainMb * 1024 * 1024, TimeUnit.HOURS.toMillis(historyRetainHours), historyOpenRooms);
+            history.start();
+        }
+
+        try {
+            if (keystore != null) {
+                tls = ChatTls.serverContext(keystore, keystorePassword);
+            }
+            if (metricsPort > 0) {
+                ChatMetrics.startHttp(metricsPort);
+            }
+            if (cluster != null) {
+                cluster.start();
+            }
+            if (engine.equals("nio")) {
+                new NioChatEngine(port, reactors, acceptors, tls).run();
+            } else if (engine.equals("thread")) {
+                runThreadPerClient(port, task -> new Thread(task).start(), acceptors);
+            } else if (engine.equals("virtual")) {
+                runThreadPerClient(port, virtualThreadExecutor(), acceptors);
+            } else {
+                System.out.println("Unknown engine: " + engine);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Accepts connections and serves each client on its own thread.
+     * 
+     * @param port      The port to listen on.
+     * @param executor  Runs each client handler and its writer task on threads of their own.
+     * @param acceptors The number of threads accepting connections.
+     */
+    private static void runThreadPerClient(int port, Executor executor, int acceptors) throws IOException {
+        ServerSocket[] listeners = openListeners(port, acceptors);
+        System.out.println("Server is running and waiting for connections..." + (acceptors == 1 ? "" : " ("
+                + acceptors + " acceptor threads" + (listeners.length > 1 ? ", SO_REUSEPORT)" : ")"))
+                + (tls != null ? " (TLS)" : ""));
+
+        Thread[] threads = new Thread[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocket serverSocket = listeners[i % listeners.length];
+            threads[i] = new Thread(() -> acceptClients(serverSocket, executor), "chat-acceptor-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One acceptor thread of the thread-per-client engines.
+     * 
+     * @param serverSocket The socket to accept from; possibly shared with other acceptors.
+     * @param executor     Runs each client handler and its writer task.
+     */
+    private static void acceptClients(ServerSocket serverSocket, Executor executor) {
+        // Accept incoming client connections indefinitely
+        while (!serverSocket.isClosed()) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+                acceptFailed(e);
+                continue;
+            }
+            ChatMetrics.connectionsAccepted.increment();
+            if (ChatLog.CONNECTIONS.sampled()) {
+                ChatLog.log("New client connected: " + clientSocket);
+            }
+            keepAlive(clientSocket);
+
+            // Create a new client handler with a unique ID
+            ClientHandler clientHandler = new ClientHandler(clientSocket, assignId(), executor);
+            addClient(clientHandler);
+
+            // Start a new thread for the client handler
+            executor.execute(clientHandler);
+        }
+    }
+
+    /**
+     * Reports a failed accept() and pauses briefly before the acceptor tries again. The usual cause is running
+     * out of file descriptors, which only clears as clients leave, so retrying at once would just spin.
+     * 
+     * @param e The failure.
+     */
+    static void acceptFailed(IOException e) {
+        System.out.println("Accept failed: " + e.getMessage());
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Opens the listening sockets for the acceptor threads. Where SO_REUSEPORT is available (Linux, Java 9
+     * or later) each acceptor gets a socket of its own on the same port and the kernel spreads incoming
+     * connections across them, so they never queue on one accept lock; otherwise they share one socket.
+     * With --tls they are SSLServerSockets, whose connections do the handshake on the handler's first read.
+     * 
+     * @param port      The port to listen on.
+     * @param acceptors The number of acceptor threads.
+     * @return One socket per acceptor, or a single shared one.
+     */
+    private static ServerSocket[] openListeners(int port, int acceptors) throws IOException {
+        List<ServerSocket> listeners = new ArrayList<>();
+        do {
+            ServerSocket listener = tls != null ? tls.getServerSocketFactory().createServerSocket() : new ServerSocket();
+            listener.setReuseAddress(true);
+            boolean shared = acceptors == 1 || !setReusePort(listener);
+            listener.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            listeners.add(listener);
+            if (shared) {
+                break;
+            }
+        } while (listeners.size() < acceptors);
+        return listeners.toArray(new ServerSocket[0]);
+    }
+
+    /**
+     * Turns on SO_REUSEPORT for an unbound server socket. ServerSocket.setOption() arrived in Java 9, so it is
+     * called through reflection.
+     * 
+     * @param listener The socket.
+     * @return False if this Java or platform does not support it.
+     */
+    private static boolean setReusePort(ServerSocket listener) {
+        SocketOption<Boolean> reusePort = reusePortOption();
+        if (reusePort == null) {
+            return false;
+        }
+        try {
+            Set<?> supported = (Set<?>) ServerSocket.class.getMethod("supportedOptions").invoke(listener);
+            if (!supported.contains(reusePort)) {
+                return false;
+            }
+            ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(listener, reusePort, true);
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the SO_REUSEPORT socket option, which arrived in Java 9, or null if this Java lacks it.
+     * 
+     * @return The option, or null.
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> reusePortOption() {
+        try {
+            Field option = StandardSocketOptions.class.getField("SO_REUSEPORT");
+            return (SocketOption<Boolean>) option.get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Turns on TCP keepalive for a client's socket, so the kernel notices a client whose machine vanished
+     * without closing the connection, even while nothing is sent to it. Where Java (11 or later) can set the
+     * timing, probes start after --ping-interval of silence and give up by about --idle-timeout; otherwise the
+     * system's timing applies, often two hours.
+     * 
+     * @param socket The client's socket, or the socket of a client's channel.
+     */
+    static void keepAlive(Socket socket) {
+        try {
+            socket.setKeepAlive(true);
+            if (pingIntervalMillis == 0) {
+                return;
+            }
+            Method setOption = Socket.class.getMethod("setOption", SocketOption.class, Object.class); // Java 9
+            long idle = TimeUnit.MILLISECONDS.toSeconds(pingIntervalMillis);
+            long interval = TimeUnit.MILLISECONDS.toSeconds(idleTimeoutMillis - pingIntervalMillis) / 3;
+            setOption.invoke(socket, extendedOption("TCP_KEEPIDLE"), (int) Math.max(1, idle));
+            setOption.invoke(socket, extendedOption("TCP_KEEPINTERVAL"), (int) Math.max(1, interval));
+            setOption.invoke(socket, extendedOption("TCP_KEEPCOUNT"), 3);
+        } catch (IOException | ReflectiveOperationException | RuntimeException e) {
+            // Keepalive with the system's timing, or none
+        }
+    }
+
+    /**
+     * Looks up one of the jdk.net.ExtendedSocketOptions, which vary between Java versions and platforms.
+     * 
+     * @param name The option's field name.
+     * @return The option.
+     * @throws ReflectiveOperationException If this Java does not have it.
+     */
+    private static Object extendedOption(String name) throws ReflectiveOperationException {
+        return Class.forName("jdk.net.ExtendedSocketOptions").getField(name).get(null);
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per task. Virtual threads arrived in Java 21, so the
+     * factory is looked up at run time and the server still compiles and runs on older versions, where it
+     * falls back to ordinary threads.
+     * 
+     * @return The executor.
+     */
+    private static Executor virtualThreadExecutor() {
         try {
-            ServerSocket serverSocket = new ServerSocket(PORT);
-            System.out.println("Server is running and waiting for connections...");
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Virtual threads need Java 21 or later; using platform threads instead.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Returns the next unique client ID. Any number of acceptor threads may call this at once. In a cluster
+     * of N nodes, node K hands out K+1, K+1+N, K+1+2N..., so IDs are unique across the cluster without
+     * coordination.
+     * 
+     * @return The new client ID.
+     */
+    static int assignId() {
+        return nextId.getAndAdd(idStride);
+    }
+
+    /**
+     * Adds a newly accepted client to the client registry.
+     * 
+     * @param client The new client.
+     */
+    static void addClient(Session client) {
+        if (clients.putIfAbsent(client.getId(), client) == null) {
+            clientCount.incrementAndGet();
+            long delay = loginTimeoutMillis > 0 ? loginTimeoutMillis : Math.max(pingIntervalMillis, textIdleTimeoutMillis);
+            if (delay > 0) {
+                client.idleCheck = timers.schedule(delay, () -> checkIdle(client));
+            }
+        }
+    }
+
+    /**
+     * Times out a client that has gone quiet. Each client has one timeout on the timer wheel, which runs this
+     * and then schedules the next check, so a busy client costs nothing here until it goes quiet: reading
+     * only records the time (see Session.inputReceived()).
+     * 
+     * A client that has not sent its name by --login-timeout is dropped. Once named, a binary client is sent a
+     * PING whenever it has been silent for --ping-interval, and is dropped once it has been silent for
+     * --idle-timeout with a PING unanswered. A text client cannot be pinged, so it is dropped after
+     * --text-idle-timeout without input; any line keeps it, "/ping" included. So is a binary client when
+     * --ping-interval is 0.
+     * 
+     * @param client The client; runs on the timer thread.
+     */
+    private static void checkIdle(Session client) {
+        if (findClient(client.getId()) != client) {
+            return; // gone already
+        }
+        long now = timers.now();
+        long next;
+        if (client.name == null) {
+            if (loginTimeoutMillis > 0 && now - client.connectedAt >= loginTimeoutMillis) {
+                timedOut(client, "sent no name");
+                return;
+            }
+            next = loginTimeoutMillis > 0 ? client.connectedAt + loginTimeoutMillis
+                    : now + Math.max(pingIntervalMillis, textIdleTimeoutMillis);
+        } else if (client.isBinary() && pingIntervalMillis > 0) {
+            long silence = now - client.lastInput;
+            boolean unanswered = client.lastPing > client.lastInput;
+            if (unanswered && silence >= idleTimeoutMillis) {
+                timedOut(client, "did not answer a ping");
+                return;
+            }
+            if (silence >= pingIntervalMillis && now - client.lastPing >= pingIntervalMillis) {
+                client.lastPing = now;
+                unanswered = true;
+                ChatMetrics.pingsSent.increment();
+                client.send(PING);
+            }
+            next = silence < pingIntervalMillis ? client.lastInput + pingIntervalMillis : now + pingIntervalMillis;
+            if (unanswered) {
+                next = Math.min(next, Math.max(client.lastInput + idleTimeoutMillis, now + 1));
+            }
+        } else if (textIdleTimeoutMillis > 0) {
+            if (now - client.lastInput >= textIdleTimeoutMillis) {
+                timedOut(client, "sent nothing");
+                return;
+            }
+            next = client.lastInput + textIdleTimeoutMillis;
+        } else {
+            return;
+        }
+        client.idleCheck = timers.schedule(next - now, () -> checkIdle(client));
+    }
+
+    /**
+     * Drops a client that has gone quiet.
+     * 
+     * @param client The client.
+     * @param reason What it failed to do, for the log.
+     */
+    private static void timedOut(Session client, String reason) {
+        ChatMetrics.idleTimeouts.increment();
+        if (ChatLog.CONNECTIONS.sampled()) {
+            ChatLog.log(client.getName() + "(ID " + client.getId() + ") timed out: " + reason + ".");
+        }
+        client.disconnect();
+    }
+
+    /**
+     * Tops up the node's fan-out budget for the time since the last top-up, up to one second's worth, and
+     * schedules the next one a tick later.
+     */
+    private static void refillFanOut() {
+        long now = timers.now();
+        long added = (now - fanOutRefilledAt) * fanOutRate / 1000;
+        if (added > 0) {
+            fanOutTokens.accumulateAndGet(added, (tokens, more) -> Math.min(fanOutRate, tokens + more));
+            fanOutRefilledAt += added * 1000 / fanOutRate; // keeps the fraction of a delivery not added yet
+        }
+        timers.schedule(100, ChatServer::refillFanOut);
+    }
+
+    /**
+     * Takes the deliveries of one message to a room from the node's fan-out budget. A message is let through
+     * whenever some budget is left, however many recipients it has, and the budget may go below zero; later
+     * messages wait until the top-ups have paid that back. That keeps the check to one read and one add, and
+     * a room larger than the whole budget still gets its messages, only less often.
+     * 
+     * @param room   The room.
+     * @param always Whether to take it even if no budget is left, for messages that cannot be refused.
+     * @return False if the message should be refused.
+     */
+    private static boolean takeFanOut(String room, boolean always) {
+        if (!always && fanOutTokens.get() <= 0) {
+            return false;
+        }
+        Set<Session> members = rooms.get(room);
+        if (members != null) {
+            fanOutTokens.addAndGet(-members.size());
+        }
+        return true;
+    }
+
+    /**
+     * Tells a client that its message was dropped, once until one of its messages gets through again, so a
+     * flood of refused messages does not turn into a flood of notices.
+     * 
+     * @param client  The client.
+     * @param counter The metric to count the dropped message in.
+     * @param notice  The explanation for the client.
+     */
+    private static void refuse(Session client, LongAdder counter, String notice) {
+        counter.increment();
+        if (!client.refused) {
+            client.refused = true;
+            client.sendMessage(notice);
+        }
+    }
 
-            // Accept incoming client connections indefinitely
+    /**
+     * Records that a client sent a line or frame longer than --max-line. The engine then disconnects it
+     * rather than buffer the rest.
+     * 
+     * @param client The client.
+     */
+    static void inputTooLong(Session client) {
+        ChatMetrics.oversizedInputs.increment();
+        if (ChatLog.CONNECTIONS.sampled()) {
+            ChatLog.log(client.getName() + "(ID " + client.getId() + ") sent more than " + maxLineBytes
+                    + " bytes in one line or frame; disconnecting.");
+        }
+    }
+
+    /**
+     * Returns the longest line a client may send, which also bounds the frames of a binary client.
+     * 
+     * @return The limit in bytes.
+     */
+    static int maxLineBytes() {
+        return maxLineBytes;
+    }
+
+    /**
+     * Looks up a connected client by ID.
+     * 
+     * @param id The client's ID.
+     * @return The client, or null if no client with that ID is connected to this node.
+     */
+    static Session findClient(int id) {
+        return clients.get(id);
+    }
+
+    /**
+     * Returns the number of connected clients.
+     * 
+     * @return The exact count.
+     */
+    static int clientCount() {
+        return clientCount.get();
+    }
+
+    /**
+     * Returns the connected clients, as a live view that may change while it is read.
+     * 
+     * @return The clients.
+     */
+    static Collection<Session> sessions() {
+        return clients.values();
+    }
+
+    /**
+     * Creates the outbound queue for a new client, with the limits and overflow policy chosen at startup.
+     * 
+     * @return The new queue.
+     */
+    static OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueLimit, MAX_QUEUED_BYTES, overflowPolicy);
+    }
+
+    /**
+     * Prints a summary of the outbound queues every few seconds: the lines waiting in total, the clients
+     * furthest behind, and how many lines the overflow policy has dropped.
+     * 
+     * @param seconds The interval between reports.
+     */
+    private static void startQueueStats(int seconds) {
+        Thread reporter = new Thread(() -> {
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket);
+                try {
+                    Thread.sleep(seconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                List<Session> snapshot = new ArrayList<>(sessions());
+                long queued = 0;
+                long bytes = 0;
+                long dropped = 0;
+                for (Session client : snapshot) {
+                    OutboundQueue queue = client.getOutboundQueue();
+                    queued += queue.depth();
+                    bytes += queue.bytes();
+                    dropped += queue.dropped();
+                }
+                snapshot.sort(Comparator.comparingInt((Session client) -> client.getOutboundQueue().depth()).reversed());
+                StringBuilder report = new StringBuilder();
+                report.append("Outbound queues: ").append(snapshot.size()).append(" clients, ").append(queued)
+                        .append(" lines (").append(bytes).append(" bytes) waiting, ").append(dropped)
+                        .append(" dropped. Deepest:");
+                for (Session client : snapshot.subList(0, Math.min(5, snapshot.size()))) {
+                    OutboundQueue queue = client.getOutboundQueue();
+                    report.append(' ').append(client.getName()).append("(ID ").append(client.getId()).append(") ")
+                            .append(queue.depth()).append('/').append(queue.peakDepth()).append(" peak");
+                }
+                System.out.println(report);
+            }
+        }, "queue-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
 
-                // Create a new client handler with a unique ID
-                ClientHandler clientHandler = new ClientHandler(clientSocket, nextId++);
-                clients.add(clientHandler);
+    /**
+     * Returns the first line sent to a new client.
+     * 
+     * @param id The client's ID.
+     * @return The greeting line.
+     */
+    static String greeting(int id) {
+        return "Connected to chat server, your ID is " + id + ". " + ChatProtocol.OFFER_TAG;
+    }
 
-                // Start a new thread for the client handler
-                new Thread(clientHandler).start();
+    /**
+     * Handles a line from a client, in either protocol: the request to switch to binary frames, then its
+     * name, then messages and commands.
+     * 
+     * @param client The client.
+     * @param line   The line, without its terminator.
+     */
+    static void lineReceived(Session client, String line) {
+        if (!client.named) {
+            if (!client.binary && line.equals(ChatProtocol.SWITCH_LINE)) {
+                client.switchToBinary();
+                return;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            client.named = true;
+            nameReceived(client, line);
+        } else if (client.lineTokens.tryTake(1, timers.now())) {
+            messageReceived(client, line);
+        } else {
+            refuse(client, ChatMetrics.rateLimited, "You are sending too fast; messages over " + messageRate
+                    + " a second are dropped.");
+        }
+    }
+
+    /**
+     * Handles a frame from a binary client. SEND frames carry its lines; a BATCH frame carries several
+     * SEND frames. Anything else is meant for clients and is ignored.
+     * 
+     * @param client The client.
+     * @param frame  The frame from its type byte on.
+     * @throws IOException If a batch holds a malformed frame.
+     */
+    static void frameReceived(Session client, ByteBuffer frame) throws IOException {
+        byte type = frame.get();
+        if (type == ChatProtocol.SEND) {
+            lineReceived(client, ChatProtocol.text(frame));
+        } else if (type == ChatProtocol.PONG) {
+            // Nothing to do: the read itself has already kept the client alive
+        } else if (type == ChatProtocol.BATCH) {
+            ByteBuffer inner;
+            while ((inner = ChatProtocol.nextFrame(frame)) != null) {
+                if (inner.get() == ChatProtocol.SEND) { // batches do not nest
+                    lineReceived(client, ChatProtocol.text(inner));
+                }
+            }
+            if (frame.hasRemaining()) {
+                throw new IOException("Batch ends inside a frame");
+            }
+        }
+    }
+
+    /**
+     * Handles the first line from a client, which is its name, and puts the client in the lobby.
+     * 
+     * @param client The client.
+     * @param name   The name as received, or null if the client left before sending one.
+     */
+    static void nameReceived(Session client, String name) {
+        if (name == null) {
+            return;
+        }
+        client.name = name;
+        if (!name.trim().isEmpty()) {
+            if (ChatLog.CONNECTIONS.sampled()) {
+                ChatLog.log(name + " connected, ID " + client.getId() + ", total clients: " + clientCount.get() + ".");
+            }
+            if (clientsByName.putIfAbsent(name, client) != null) {
+                client.sendMessage("Another client is already called " + name + "; private messages to that name go to them.");
+            }
+        }
+        joinRoom(client, LOBBY);
+    }
+
+    /**
+     * Handles a line from a client: runs it if it is a command, otherwise logs it and broadcasts it to
+     * everyone else in the sender's room, unless the node's fan-out budget is spent.
+     * 
+     * @param sender The client that sent the line.
+     * @param line   The line, without its terminator.
+     */
+    static void messageReceived(Session sender, String line) {
+        if (line.startsWith("/") && runCommand(sender, line)) {
+            ChatMetrics.commandsIn.increment();
+            return;
+        }
+        String room = sender.getRoom() != null ? sender.getRoom() : LOBBY;
+        if (fanOutRate > 0 && !takeFanOut(room, false)) {
+            refuse(sender, ChatMetrics.fanOutRefused, "The server is busy; messages are not being sent for now.");
+            return;
+        }
+        sender.refused = false;
+        ChatMetrics.messagesIn.increment();
+        // Log received message on server console, if it is sampled
+        if (ChatLog.MESSAGES.sampled()) {
+            ChatLog.log("New message received from " + sender.getName() + "(ID " + sender.getId() + "): " + line);
+        }
+        // Broadcast the message to other clients with name and ID prefix, and keep it in the room's history
+        String text = "New message from " + sender.getName() + "(ID " + sender.getId() + "): " + line;
+        if (history != null) {
+            history.record(room, text);
+        }
+        deliver(room, ChatProtocol.MESSAGE, sender.getId(), sender.getName(), line, text, sender);
+        if (cluster != null) {
+            cluster.relayMessage(room, sender.getId(), sender.getName(), line);
+        }
+    }
+
+    /**
+     * Handles a chat message relayed from another node of the cluster: keeps it in the room's history and
+     * delivers it to the room's members here, exactly as if the sender were connected to this node.
+     * 
+     * @param room       The sender's room.
+     * @param senderId   The sender's cluster-wide ID.
+     * @param senderName The sender's name.
+     * @param line       The message.
+     */
+    static void relayedMessage(String room, int senderId, String senderName, String line) {
+        ChatMetrics.relayedIn.increment();
+        if (fanOutRate > 0) {
+            takeFanOut(room, true); // accepted by its own node; it only leaves less for this node's clients
+        }
+        String text = "New message from " + senderName + "(ID " + senderId + "): " + line;
+        if (history != null) {
+            history.record(room, text);
+        }
+        deliver(room, ChatProtocol.MESSAGE, senderId, senderName, line, text, null);
+    }
+
+    /**
+     * Handles a room notice relayed from another node of the cluster.
+     * 
+     * @param room   The room.
+     * @param notice The notice.
+     */
+    static void relayedNotice(String room, String notice) {
+        deliver(room, ChatProtocol.NOTICE, -1, null, notice, notice, null);
+    }
+
+    /**
+     * Runs a command line.
+     * 
+     * @param sender The client that sent the command.
+     * @param line   The command line, starting with "/".
+     * @return false if the line is not a known command, so it should be treated as a chat message.
+     */
+    private static boolean runCommand(Session sender, String line) {
+        String[] parts = line.split("\\s+", 3);
+        switch (parts[0]) {
+            case "/join":
+                if (parts.length < 2) {
+                    sender.sendMessage("Usage: /join <room>");
+                } else if (parts[1].getBytes(StandardCharsets.UTF_8).length > MAX_ROOM_NAME_BYTES) {
+                    sender.sendMessage("Room names are at most " + MAX_ROOM_NAME_BYTES + " bytes long.");
+                } else {
+                    joinRoom(sender, parts[1]);
+                }
+                return true;
+            case "/leave":
+                if (LOBBY.equals(sender.getRoom())) {
+                    sender.sendMessage("You are already in the " + LOBBY + ".");
+                } else {
+                    joinRoom(sender, LOBBY);
+                }
+                return true;
+            case "/msg":
+                if (parts.length < 3) {
+                    sender.sendMessage("Usage: /msg <name> <message> or /msg #<id> <message>");
+                    return true;
+                }
+                Session recipient = clientsByName.get(parts[1]);
+                if (recipient == null && parts[1].matches("#\\d{1,9}")) {
+                    recipient = findClient(Integer.parseInt(parts[1].substring(1)));
+                }
+                if (recipient == null) {
+                    sender.sendMessage("No client called " + parts[1] + " is connected.");
+                } else {
+                    new Outgoing(ChatProtocol.PRIVATE, sender.getId(), sender.getName(), parts[2], "Private message from "
+                            + sender.getName() + "(ID " + sender.getId() + "): " + parts[2]).deliver(recipient);
+                }
+                return true;
+            case "/history":
+            case "/since":
+                replayHistory(sender, parts);
+                return true;
+            case "/ping":
+                sender.sendMessage("pong"); // the line itself has already kept the client alive
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Runs /history [n] or /since <id> for the sender's room.
+     * 
+     * @param sender The client that sent the command.
+     * @param parts  The command split into words.
+     */
+    private static void replayHistory(Session sender, String[] parts) {
+        if (history == null) {
+            sender.sendMessage("This server keeps no history.");
+            return;
+        }
+        String room = sender.getRoom() != null ? sender.getRoom() : LOBBY;
+        try {
+            if (parts[0].equals("/history")) {
+                history.replayLast(sender, room, parts.length < 2 ? 20 : Integer.parseInt(parts[1]));
+            } else if (parts.length < 2) {
+                sender.sendMessage("Usage: /since <message id>");
+            } else {
+                history.replayAfter(sender, room, Long.parseLong(parts[1].replace("#", "")));
+            }
+        } catch (NumberFormatException e) {
+            sender.sendMessage("Usage: /history [count] or /since <message id>");
+        }
+    }
+
+    /**
+     * Moves a client into a room, telling the members of the old and new rooms.
+     * 
+     * @param client The client.
+     * @param room   The room to join; it is created if nobody is in it yet.
+     */
+    private static void joinRoom(Session client, String room) {
+        String previous = client.room;
+        if (room.equals(previous)) {
+            client.sendMessage("You are already in " + room + ".");
+            return;
+        }
+        if (previous != null) {
+            leaveRoom(client, previous);
+            broadcast(client.getName() + "(ID " + client.getId() + ") left " + previous + ".", client);
         }
+        client.room = room;
+        // compute() runs atomically for the room, so a room emptied by a leaving client cannot lose a new member
+        Set<Session> members = rooms.compute(room, (key, current) -> {
+            Set<Session> set = current != null ? current : ConcurrentHashMap.newKeySet();
+            set.add(client);
+            return set;
+        });
+        if (previous != null) {
+            broadcast(client.getName() + "(ID " + client.getId() + ") joined " + room + ".", client);
+            int others = members.size() - 1;
+            client.sendMessage("You are now in " + room + " with " + others + (others == 1 ? " other." : " others."));
+        }
+    }
+
+    /**
+     * Removes a client from a room's members, dropping the room once it is empty.
+     * 
+     * @param client The client.
+     * @param room   The room it is leaving.
+     */
+    private static void leaveRoom(Session client, String room) {
+        rooms.computeIfPresent(room, (key, members) -> {
+            members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
     }
 
     /**
-     * Broadcasts a message to all connected clients except the sender.
+     * Broadcasts a server notice to all clients in the sender's room except the sender, on every node of
+     * the cluster.
      * 
      * @param message The message to broadcast.
      * @param sender  The client handler of the sender (to exclude from broadcast).
      */
-    public static void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.sendMessage(message);
+    public static void broadcast(String message, Session sender) {
+        String room = sender.getRoom() != null ? sender.getRoom() : LOBBY;
+        deliver(room, ChatProtocol.NOTICE, -1, null, message, message, sender);
+        if (cluster != null) {
+            cluster.relayNotice(room, message);
+        }
+    }
+
+    /**
+     * Delivers a message to the members of a room on this node. It is encoded once per protocol and the
+     * same read-only buffer is queued for every recipient. The time this takes, encoding included, goes into
+     * the fan-out histogram.
+     * 
+     * @param room       The room.
+     * @param type       The frame type for binary clients.
+     * @param senderId   The sender's ID, or -1 for a notice.
+     * @param senderName The sender's name, or null for a notice.
+     * @param text       The frame text for binary clients.
+     * @param line       The whole line for text clients.
+     * @param except     The client not to deliver it to, or null.
+     */
+    private static void deliver(String room, byte type, int senderId, String senderName, String text, String line,
+            Session except) {
+        Set<Session> members = rooms.get(room);
+        if (members == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        Outgoing message = new Outgoing(type, senderId, senderName, text, line);
+        int recipients = 0;
+        for (Session client : members) {
+            if (client != except) {
+                message.deliver(client);
+                recipients++;
+            }
+        }
+        ChatMetrics.fanOutNanos.record(System.nanoTime() - start);
+        ChatMetrics.fanOutRecipients.record(recipients);
+    }
+
+    /**
+     * One message on its way to any number of clients. It is encoded on first use for each protocol, so a
+     * broadcast costs one line and at most one frame (plus one copy led by the sender's NAME frame) however
+     * many clients receive it. Only the broadcasting thread uses it.
+     */
+    private static final class Outgoing {
+        private final byte type;
+        private final int senderId;
+        private final String senderName;
+        private final String text;
+        private final String line;
+        private ByteBuffer encodedLine;
+        private ByteBuffer encodedFrame;
+        private ByteBuffer encodedNamedFrame;
+
+        /**
+         * @param type       The frame type for binary clients.
+         * @param senderId   The ID of the client it is from, or -1 for a notice.
+         * @param senderName The name of the client it is from, or null for a notice.
+         * @param text       The frame text for binary clients.
+         * @param line       The whole line for text clients.
+         */
+        Outgoing(byte type, int senderId, String senderName, String text, String line) {
+            this.type = type;
+            this.senderId = senderId;
+            this.senderName = senderName;
+            this.text = text;
+            this.line = line;
+        }
+
+        void deliver(Session client) {
+            if (!client.isBinary()) {
+                if (encodedLine == null) {
+                    encodedLine = encode(line);
+                }
+                client.send(encodedLine);
+                return;
+            }
+            if (encodedFrame == null) {
+                encodedFrame = ChatProtocol.frame(type, senderId, text);
+            }
+            if (senderId >= 0 && client.announce(senderId)) {
+                // One buffer, so the overflow policy keeps or drops the name and the message together
+                if (encodedNamedFrame == null) {
+                    ByteBuffer name = ChatProtocol.frame(ChatProtocol.NAME, senderId, senderName);
+                    ByteBuffer frame = encodedFrame.duplicate();
+                    ByteBuffer both = ByteBuffer.allocate(name.remaining() + frame.remaining());
+                    both.put(name).put(frame).flip();
+                    encodedNamedFrame = both.asReadOnlyBuffer();
+                }
+                client.send(encodedNamedFrame);
+                return;
             }
+            client.send(encodedFrame);
         }
     }
 
- 
+    /**
+     * Encodes a message as one UTF-8 line, ready to be queued for any number of clients.
+     * 
+     * @param message The message, without a line terminator.
+     * @return A read-only buffer holding the line and its terminator.
+     */
+    static ByteBuffer encode(String message) {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+
 
     /**
      * Removes a client from the list and prints the updated client list.
      * 
      * @param client The client handler to remove.
      */
-    public static void removeClient(ClientHandler client) {
-        clients.remove(client);
-        System.out.println(client.getName() + " disconnected, ID " + client.getId() + ", total clients: " + clients.size() + ".");
+    public static void removeClient(Session client) {
+        TimerWheel.Timeout idleCheck = client.idleCheck;
+        if (idleCheck != null) {
+            idleCheck.cancel();
+        }
+        int remaining = clients.remove(client.getId(), client) ? clientCount.decrementAndGet() : clientCount.get();
+        String room = client.getRoom();
+        if (room != null) {
+            leaveRoom(client, room);
+        }
+        clientsByName.remove(client.getName(), client);
+        ChatMetrics.connectionsClosed.increment();
+        if (ChatLog.CONNECTIONS.sampled()) {
+            ChatLog.log(client.getName() + " disconnected, ID " + client.getId() + ", total clients: " + remaining + ".");
+        }
     }
 
     /**
      * Inner class to handle individual client connections in a separate thread.
+     * 
+     * Lines for the client go into its outbound queue, and a writer task of its own drains the queue into
+     * the socket, so a sender never waits on anyone else's socket.
      */
-    private static class ClientHandler implements Runnable {
+    private static class ClientHandler extends Session implements Runnable {
+        private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
         private Socket clientSocket; // Client's socket
-        private PrintWriter out;     // Output stream to client
-        private BufferedReader in;   // Input stream from client
-        private int id;              // Unique ID for the client
-        private String name;         // Client's name
+        private OutputStream out;    // Output stream to client
+        private LineReader in;       // Input stream from client
+        private final Executor executor; // Runs the writer task
 
         /**
          * Constructor to initialize the client handler.
          * 
-         * @param socket The client's socket.
-         * @param id     The unique ID assigned to the client.
+         * @param socket   The client's socket.
+         * @param id       The unique ID assigned to the client.
+         * @param executor Executor for the client's writer task.
          */
-        public ClientHandler(Socket socket, int id) {
+        public ClientHandler(Socket socket, int id, Executor executor) {
+            super(id);
             this.clientSocket = socket;
-            this.id = id;
+            this.executor = executor;
+            // The greeting goes first, ahead of anything broadcast before the handler starts
+            sendMessage(greeting(id));
             try {
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                out = clientSocket.getOutputStream();
+                in = new LineReader(clientSocket.getInputStream(), this);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
+        @Override
+        public void run() {
+            try {
+                // Start writing to the client, beginning with the connection confirmation and ID
+                executor.execute(this::drainOutbound);
+
+                // Read the client's name (first input after connection), then its messages, as lines
+                // or as frames once it has switched to the binary protocol
+                while (true) {
+                    if (isBinary()) {
+                        ByteBuffer frame = ChatProtocol.readFrame(in, maxLineBytes);
+                        if (frame == null) {
+                            break;
+                        }
+                        inputReceived();
+                        frameReceived(this, frame);
+                    } else {
+                        String inputLine = in.readLine();
+                        if (inputLine == null) {
+                            break;
+                        }
+                        inputReceived();
+                        lineReceived(this, inputLine);
+                    }
+                }
+            } catch (ChatProtocol.TooLongException e) {
+                inputTooLong(this);
+            } catch (IOException e) {
+                // Handle client disconnection
+            } finally {
+                // Clean up resources and remove client
+                getOutboundQueue().close();
+                disconnect();
+                removeClient(this);
+            }
+        }
+
+        @Override
+        void lineQueued() {
+            // The writer task is already waiting on the queue
+        }
+
         /**
-         * Returns the client's ID.
-         * 
-         * @return The client's ID.
+         * The writer task: writes queued lines until the handler finishes. Whatever has piled up meanwhile
+         * is copied into one buffer and sent with a single write, up to WRITE_BUFFER_SIZE at a time; for a
+         * binary client it goes out as one BATCH frame.
          */
-        public int getId() {
-            return id;
+        private void drainOutbound() {
+            OutboundQueue outbound = getOutboundQueue();
+            List<ByteBuffer> batch = new ArrayList<>();
+            try {
+                while (outbound.awaitLines()) {
+                    outbound.drainTo(batch);
+                    if (isBinary()) {
+                        ChatProtocol.wrapBatch(batch);
+                    }
+                    int total = 0;
+                    for (ByteBuffer line : batch) {
+                        total += line.remaining();
+                    }
+                    // Sized per batch, so an idle client does not hold a write buffer
+                    byte[] buffer = new byte[Math.min(total, WRITE_BUFFER_SIZE)];
+                    int length = 0;
+                    for (ByteBuffer shared : batch) {
+                        ByteBuffer line = shared.duplicate();
+                        while (line.hasRemaining()) {
+                            int chunk = Math.min(line.remaining(), buffer.length - length);
+                            line.get(buffer, length, chunk);
+                            length += chunk;
+                            if (length == buffer.length) {
+                                out.write(buffer, 0, length);
+                                length = 0;
+                            }
+                        }
+                    }
+                    if (length > 0) {
+                        out.write(buffer, 0, length);
+                    }
+                    ChatMetrics.bytesOut.add(total);
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException e) {
+                disconnect();
+            }
+        }
+
+        /**
+         * Closes the socket; the reader sees it closed and cleans up.
+         */
+        @Override
+        void disconnect() {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Reads UTF-8 lines from a stream, ending them at "\n" or "\r\n" like BufferedReader. It takes no
+     * monitor, so a virtual thread blocked in readLine() does not pin its carrier thread.
+     * 
+     * It is also a buffered InputStream, so frames can be read from it once a client switches to the
+     * binary protocol, starting right after the line that asked for the switch.
+     * 
+     * Every read from the socket is counted against the client's --byte-rate, and the reader sleeps once the
+     * client is over it, leaving the rest in the socket; a line longer than --max-line is refused.
+     */
+    private static class LineReader extends InputStream {
+        private final InputStream in;
+        private final Session client;
+        private final byte[] buffer = new byte[8192];
+        private int position = 0;
+        private int limit = 0;
+        private byte[] line = new byte[128];
+
+        LineReader(InputStream in, Session client) {
+            this.in = in;
+            this.client = client;
         }
 
         /**
-         * Returns the client's name.
+         * Returns the next line without its terminator, or null at the end of the stream.
          * 
-         * @return The client's name.
+         * @throws ChatProtocol.TooLongException If the line is longer than --max-line.
          */
-        public String getName() {
-            return name != null ? name : "Unknown";
+        String readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                if (position == limit) {
+                    int count = received(in.read(buffer));
+                    if (count < 0) {
+                        return length > 0 ? decode(length) : null;
+                    }
+                    position = 0;
+                    limit = count;
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                int chunk = position - start;
+                if (length + chunk > maxLineBytes) {
+                    throw new ChatProtocol.TooLongException("Line longer than " + maxLineBytes + " bytes");
+                }
+                if (length + chunk > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunk));
+                }
+                System.arraycopy(buffer, start, line, length, chunk);
+                length += chunk;
+                if (position < limit) {
+                    position++; // past the '\n'
+                    return decode(length);
+                }
+            }
         }
 
         @Override
-        public void run() {
-            try {
-                // Send connection confirmation and ID to the client
-                out.println("Connected to chat server, your ID is " + id + ".");
-
-                // Read the client's name (first input after connection)
-                name = in.readLine();
-                if (name != null && !name.trim().isEmpty()) {
-                    System.out.println(name + " connected, ID " + id + ", total clients: " + clients.size() + ".");
-                 }
-
-                String inputLine;
-                // Read messages from the client
-                while ((inputLine = in.readLine()) != null) {
-                    // Print received message on server console
-                    System.out.println("New message received from " + name + "(ID " + id + "): " + inputLine);
-                    // Broadcast the message to other clients with name and ID prefix
-                    broadcast("New message from " + name + "(ID " + id + "): " + inputLine, this);
+        public int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == limit) {
+                if (length >= buffer.length) {
+                    return received(in.read(bytes, offset, length)); // nothing buffered; skip the copy
                 }
-            } catch (IOException e) {
-                // Handle client disconnection
-            } finally {
-                // Clean up resources and remove client
-                try {
-                    if (in != null) in.close();
-                    if (out != null) out.close();
-                    if (clientSocket != null) clientSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (!fill()) {
+                    return -1;
                 }
-                removeClient(this);
             }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(buffer, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            int count = received(in.read(buffer));
+            if (count < 0) {
+                return false;
+            }
+            position = 0;
+            limit = count;
+            return true;
         }
 
         /**
-         * Sends a message to the client.
+         * Counts what a read returned against the client's byte rate, sleeping if it is over.
          * 
-         * @param message The message to send.
+         * @param count The number of bytes read, or -1 at the end of the stream.
+         * @return The count.
          */
-        public void sendMessage(String message) {
-            out.println(message);
+        private int received(int count) throws IOException {
+            if (count > 0) {
+                long wait = client.bytesReceived(count);
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            return count;
+        }
+
+        private String decode(int length) {
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            return new String(line, 0, length, StandardCharsets.UTF_8);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,148 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS settings shared by the server, the client and the load test.
+ *
+ * Keys and certificates come from PKCS12 keystores, which keytool makes. For
+ * a local test a self-signed certificate is enough:
+ * <pre>
+ *   keytool -genkeypair -alias chat -keyalg EC -keysize 256 -validity 365 -dname CN=localhost \
+ *       -ext SAN=dns:localhost,ip:127.0.0.1 -storetype PKCS12 -keystore chat-keystore.p12 -storepass changeit
+ *   keytool -exportcert -alias chat -keystore chat-keystore.p12 -storepass changeit -file chat.cer
+ *   keytool -importcert -alias chat -file chat.cer -storetype PKCS12 -keystore chat-truststore.p12 \
+ *       -storepass changeit -noprompt
+ * </pre>
+ * The server loads the first file and clients trust the last one. An EC key
+ * keeps the server's part of each full handshake cheap.
+ *
+ * Reconnecting clients resume their session instead of repeating the full
+ * handshake. The server issues TLS 1.3 session tickets (or caches TLS 1.2
+ * sessions) for SESSION_TIMEOUT_SECONDS, and a client offers one when it
+ * connects to the same host and port again with the same SSLContext. Java's
+ * client keeps one session per host and port and uses a TLS 1.3 ticket only
+ * once, so a process that opens many connections at a time, like the load
+ * test, needs a context for each to resume them all.
+ */
+final class ChatTls {
+    static final String DEFAULT_PASSWORD = "changeit";
+    static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    static final int SESSION_CACHE_SIZE = 100000; // sessions the server remembers, for clients without tickets
+
+    private ChatTls() {
+    }
+
+    /**
+     * Creates the server's TLS context from a keystore holding its key and certificate.
+     *
+     * @param keystore the PKCS12 file
+     * @param password its password, which must also be the key's
+     */
+    static SSLContext serverContext(String keystore, String password) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keystore, password), password.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Creates a client's TLS context. Keep one for the life of the process:
+     * it holds the sessions a reconnect can resume.
+     *
+     * @param truststore a PKCS12 file with the certificates to trust, or null for Java's own
+     * @param password   its password
+     */
+    static SSLContext clientContext(String truststore, String password) throws IOException {
+        return clientContext(trustManagers(truststore, password));
+    }
+
+    /**
+     * Creates a client's TLS context, with a session cache of its own.
+     *
+     * @param trust from trustManagers(), which can be shared by any number of contexts
+     */
+    static SSLContext clientContext(TrustManager[] trust) throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Loads the certificates a client trusts.
+     *
+     * @param truststore a PKCS12 file with the certificates to trust, or null for Java's own
+     * @param password   its password
+     * @return the trust managers, or null for Java's own
+     */
+    static TrustManager[] trustManagers(String truststore, String password) throws IOException {
+        if (truststore == null) {
+            return null;
+        }
+        try {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(load(truststore, password));
+            return trust.getTrustManagers();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot use " + truststore + ": " + e.getMessage(), e);
+        }
+    }
+
+    static SSLEngine serverEngine(SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Creates a client engine that checks the server's certificate is for
+     * host, and can resume an earlier session with the same host and port.
+     */
+    static SSLEngine clientEngine(SSLContext context, String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * Returns whether a session that has just finished its handshake was
+     * resumed rather than newly negotiated. A resumed session keeps the
+     * creation time of the one it came from.
+     *
+     * @param handshakeStart System.currentTimeMillis() from before the handshake began
+     */
+    static boolean resumed(SSLSession session, long handshakeStart) {
+        return session.getCreationTime() < handshakeStart;
+    }
+
+    private static KeyStore load(String file, String password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            store.load(in, password.toCharArray());
+        }
+        return store;
+    }
+}
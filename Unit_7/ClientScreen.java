@@ -0,0 +1,120 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The chat client's terminal: incoming lines wait in a ring buffer, and a
+ * render thread draws whatever has arrived a few dozen times a second.
+ *
+ * The thread reading the socket only puts lines into the ring, so it never
+ * waits on the terminal however slow that is, and the server never sees the
+ * client fall behind. Each frame is drawn with a single write: the prompt
+ * line is cleared once, every new line is printed, and the prompt comes back
+ * once, instead of all three for every line. A burst of more lines than
+ * MAX_LINES_PER_FRAME in one frame is collapsed to its newest lines and a
+ * count of the rest, since nobody could read them scrolling past anyway.
+ *
+ * The ring has one producer, the receiver, and one consumer, the render
+ * thread, so it needs no lock: each side owns one counter and only reads the
+ * other's. If the ring fills up the receiver drops the new line and counts it
+ * rather than wait.
+ */
+class ClientScreen {
+    private static final long FRAME_MILLIS = 33; // about 30 frames a second
+    private static final int CAPACITY = 8192; // lines; a power of two
+    private static final int MAX_LINES_PER_FRAME = 100;
+    private static final String CLEAR_LINE = "\u001B[2K\r";
+    private static final String CYAN = "\u001B[36m";
+    private static final String RESET = "\u001B[0m";
+
+    private final String prompt;
+    private final PrintStream terminal = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+    private final String[] ring = new String[CAPACITY];
+    private final AtomicLong head = new AtomicLong(); // next line to draw; written by the render thread
+    private final AtomicLong tail = new AtomicLong(); // next free slot; written by the receiver
+    private final AtomicLong overflowed = new AtomicLong(); // lines dropped because the ring was full
+    private volatile boolean promptWanted = false;
+
+    /**
+     * @param prompt the prompt to keep at the bottom of the screen
+     */
+    ClientScreen(String prompt) {
+        this.prompt = prompt;
+    }
+
+    /**
+     * Starts the render thread.
+     */
+    void start() {
+        Thread renderer = new Thread(this::renderAll, "chat-render");
+        renderer.setDaemon(true);
+        renderer.start();
+    }
+
+    /**
+     * Adds a line to show above the prompt. Only the receiver thread may call this.
+     */
+    void add(String line) {
+        long slot = tail.get();
+        if (slot - head.get() == CAPACITY) {
+            overflowed.incrementAndGet();
+            return;
+        }
+        ring[(int) slot & (CAPACITY - 1)] = line;
+        tail.lazySet(slot + 1); // publishes the line to the render thread
+    }
+
+    /**
+     * Has the prompt drawn again with the next frame, e.g. after the user sent a line.
+     */
+    void showPrompt() {
+        promptWanted = true;
+    }
+
+    private void renderAll() {
+        StringBuilder frame = new StringBuilder();
+        while (true) {
+            try {
+                Thread.sleep(FRAME_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long first = head.get();
+            long end = tail.get();
+            long skipped = overflowed.getAndSet(0);
+            if (first == end && skipped == 0 && !promptWanted) {
+                continue;
+            }
+            promptWanted = false;
+            frame.append(CLEAR_LINE);
+            if (end - first > MAX_LINES_PER_FRAME) {
+                for (long i = first; i < end - MAX_LINES_PER_FRAME; i++) {
+                    ring[(int) i & (CAPACITY - 1)] = null;
+                }
+                skipped += end - MAX_LINES_PER_FRAME - first;
+                first = end - MAX_LINES_PER_FRAME;
+            }
+            if (first < end || skipped > 0) {
+                frame.append(CYAN);
+                if (skipped > 0) {
+                    frame.append("... ").append(skipped).append(skipped == 1 ? " message" : " messages")
+                            .append(" not shown ...").append(System.lineSeparator());
+                }
+                for (long i = first; i < end; i++) {
+                    int index = (int) i & (CAPACITY - 1);
+                    frame.append(ring[index]).append(System.lineSeparator());
+                    ring[index] = null;
+                }
+                frame.append(RESET);
+            }
+            head.lazySet(end); // hands the slots back to the receiver
+            frame.append(prompt);
+            terminal.print(frame);
+            terminal.flush();
+            frame.setLength(0);
+        }
+    }
+}
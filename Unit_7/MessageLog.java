@@ -0,0 +1,427 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only log of one room's chat messages.
+ *
+ * The log is a directory of segment files, each named after the ID of its
+ * first message. Messages are numbered 1, 2, 3... in the order they are
+ * appended, and each is stored as the line a text client would see, prefixed
+ * with its ID: "[#42] New message from ...\n". Replaying history is then just
+ * a matter of sending a range of a file as it is.
+ *
+ * Segments are memory mapped, so an append is a copy into the page cache and
+ * survives the process dying; once a segment is full a new one is started. A
+ * sparse index keeps the position of every INDEX_INTERVAL-th message of a
+ * segment, and finding any other message scans at most that many lines.
+ * Retention removes whole segments from the old end, by age or by the total
+ * size of the log.
+ *
+ * One thread appends; any thread may read. Regions handed out for reading
+ * stay valid after a later append, since a segment is never rewritten, and
+ * after the log is closed, since they can still be sent from the mapping.
+ */
+class MessageLog {
+    private static final int INDEX_INTERVAL = 64;
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock
+    private final List<Segment> segments = new ArrayList<>(); // oldest first; the last one takes appends
+    private long nextId = 1;
+    private boolean closed = false;
+
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    /**
+     * Opens the log in a directory, creating it if needed and recovering
+     * whatever earlier runs wrote there.
+     *
+     * @param segmentBytes the size of each segment file
+     */
+    MessageLog(Path directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files); // the names are zero-padded IDs
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            Segment segment = Segment.recover(file, baseId);
+            segments.add(segment);
+            nextId = segment.nextId;
+        }
+    }
+
+    /**
+     * Appends one message.
+     *
+     * @param line the message as a text client would see it, without a line
+     *             terminator; any line breaks in it are replaced by spaces
+     * @return the ID given to the message
+     */
+    long append(String line) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            lastUsedMillis = System.currentTimeMillis();
+            long id = nextId;
+            byte[] record = ("[#" + id + "] " + line.replace('\n', ' ').replace('\r', ' ') + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active == null || !active.fits(record.length)) {
+                Path file = directory.resolve(String.format("%020d", id) + SUFFIX);
+                active = Segment.create(file, id, Math.max(segmentBytes, record.length));
+                segments.add(active);
+            }
+            active.append(record);
+            nextId = id + 1;
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The ID of the newest message, or 0 if there is none. */
+    long lastId() {
+        lock.lock();
+        try {
+            return nextId - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the messages after a given ID, newest last.
+     *
+     * @param afterId     the last message the reader already has; 0 for all
+     * @param maxMessages the most messages to return; older ones are left out
+     * @param maxBytes    the most bytes to return; older messages are left out
+     * @return where the messages are, ready to be sent, or null if the log
+     *         has been closed
+     */
+    Replay readAfter(long afterId, int maxMessages, long maxBytes) {
+        lock.lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            lastUsedMillis = System.currentTimeMillis();
+            long firstId = segments.isEmpty() ? nextId : segments.get(0).baseId;
+            long from = Math.max(Math.max(afterId + 1, firstId), nextId - maxMessages);
+            List<Region> regions = new ArrayList<>();
+            long total = 0;
+            for (Segment segment : segments) {
+                if (segment.nextId > from && segment.size > 0) {
+                    int start = segment.positionOf(Math.max(from, segment.baseId));
+                    regions.add(new Region(segment, start, segment.size));
+                    total += segment.size - start;
+                }
+            }
+            // Over the byte limit: leave out the oldest messages, a line at a time
+            while (total > maxBytes && !regions.isEmpty()) {
+                Region oldest = regions.get(0);
+                int next = oldest.segment.lineEnd(oldest.start) + 1;
+                total -= next - oldest.start;
+                from++;
+                if (next >= oldest.end) {
+                    regions.remove(0);
+                } else {
+                    regions.set(0, new Region(oldest.segment, next, oldest.end));
+                }
+            }
+            return new Replay(from, nextId - 1, regions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes segments from the old end of the log that are past either
+     * limit. The segment taking appends is always kept.
+     *
+     * @param maxBytes     the most bytes to keep
+     * @param maxAgeMillis how long to keep a segment after its last append
+     * @param now          the current time in milliseconds
+     */
+    void retain(long maxBytes, long maxAgeMillis, long now) {
+        lock.lock();
+        try {
+            long total = 0;
+            for (Segment segment : segments) {
+                total += segment.size;
+            }
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                if (total <= maxBytes && now - oldest.lastAppendMillis <= maxAgeMillis) {
+                    break;
+                }
+                segments.remove(0);
+                total -= oldest.size;
+                oldest.delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the same retention as retain() to a log that is not open, going
+     * by the segment files alone: their sizes on disk and when they were last
+     * written. The newest segment is always kept.
+     */
+    static void retainFiles(Path directory, long maxBytes, long maxAgeMillis, long now) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files); // the names are zero-padded IDs
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        for (int i = 0; i < files.size() - 1; i++) {
+            Path oldest = files.get(i);
+            if (total <= maxBytes && now - Files.getLastModifiedTime(oldest).toMillis() <= maxAgeMillis) {
+                break;
+            }
+            total -= Files.size(oldest);
+            Files.deleteIfExists(oldest);
+        }
+    }
+
+    /** When a message was last appended or read, in milliseconds. */
+    long lastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    /**
+     * Closes the segment files. The files stay, to be recovered by the next
+     * MessageLog opened on the directory; this one takes no more appends.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A run of messages to replay: the bytes of a part of one segment.
+     */
+    static final class Region {
+        private final Segment segment;
+        private final int start;
+        private final int end;
+
+        private Region(Segment segment, int start, int end) {
+            this.segment = segment;
+            this.start = start;
+            this.end = end;
+        }
+
+        int length() {
+            return end - start;
+        }
+
+        /** The region without its first count bytes. */
+        Region skip(long count) {
+            return new Region(segment, start + (int) count, end);
+        }
+
+        /**
+         * Returns the bytes as a read-only view of the mapped segment, so
+         * nothing is copied until they are written out.
+         */
+        ByteBuffer bytes() {
+            ByteBuffer bytes = segment.map.duplicate();
+            bytes.position(start);
+            bytes.limit(end);
+            return bytes.slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Sends as much of the region as the target takes, straight from the
+         * file; to a socket this is a sendfile() and the bytes never enter the
+         * Java heap.
+         *
+         * If the segment's file has since been closed, by retention or by
+         * closing the log, the bytes are sent from its mapping instead, which
+         * stays valid until it is garbage collected.
+         *
+         * @return the number of bytes sent
+         */
+        long transferTo(WritableByteChannel target) throws IOException {
+            try {
+                return segment.channel.transferTo(start, end - start, target);
+            } catch (ClosedChannelException e) {
+                if (segment.channel.isOpen()) {
+                    throw e;
+                }
+                return target.write(bytes());
+            }
+        }
+    }
+
+    /**
+     * The messages found by readAfter(): their IDs and where they are.
+     */
+    static final class Replay {
+        final long firstId;
+        final long lastId;
+        final List<Region> regions;
+
+        Replay(long firstId, long lastId, List<Region> regions) {
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.regions = regions;
+        }
+
+        boolean isEmpty() {
+            return regions.isEmpty();
+        }
+    }
+
+    /**
+     * One segment file, mapped in full. Bytes past size are unused and zero.
+     */
+    private static final class Segment {
+        final long baseId;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        int size = 0;
+        long nextId;
+        long lastAppendMillis;
+        private int[] index = new int[16]; // position of message baseId + i * INDEX_INTERVAL
+        private int indexCount = 0;
+
+        private Segment(Path file, long baseId, FileChannel channel, MappedByteBuffer map, long lastAppendMillis) {
+            this.file = file;
+            this.baseId = baseId;
+            this.channel = channel;
+            this.map = map;
+            this.nextId = baseId;
+            this.lastAppendMillis = lastAppendMillis;
+        }
+
+        static Segment create(Path file, long baseId, long capacity) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new Segment(file, baseId, channel, map, System.currentTimeMillis());
+        }
+
+        /**
+         * Opens an existing segment and finds where its messages end: after
+         * the last complete line, so a message cut short by a crash is dropped.
+         */
+        static Segment recover(Path file, long baseId) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            Segment segment = new Segment(file, baseId, channel, map,
+                    Files.getLastModifiedTime(file).toMillis());
+            int end = map.capacity();
+            while (end > 0 && map.get(end - 1) != '\n') {
+                end--;
+            }
+            for (int position = 0; position < end; position = segment.lineEnd(position) + 1) {
+                segment.indexMessage(position);
+            }
+            segment.size = end;
+            return segment;
+        }
+
+        boolean fits(int length) {
+            return size + length <= map.capacity();
+        }
+
+        void append(byte[] record) {
+            indexMessage(size);
+            ByteBuffer target = map.duplicate();
+            target.position(size);
+            target.put(record);
+            size += record.length;
+            lastAppendMillis = System.currentTimeMillis();
+        }
+
+        /** Counts a message starting at the given position, indexing it if its turn has come. */
+        private void indexMessage(int position) {
+            if ((nextId - baseId) % INDEX_INTERVAL == 0) {
+                if (indexCount == index.length) {
+                    index = Arrays.copyOf(index, indexCount * 2);
+                }
+                index[indexCount++] = position;
+            }
+            nextId++;
+        }
+
+        /** The position where the given message, which must be in this segment, starts. */
+        int positionOf(long id) {
+            long offset = id - baseId;
+            int position = index[(int) (offset / INDEX_INTERVAL)];
+            for (long skip = offset % INDEX_INTERVAL; skip > 0; skip--) {
+                position = lineEnd(position) + 1;
+            }
+            return position;
+        }
+
+        /** The position of the '\n' ending the line that starts at the given position. */
+        int lineEnd(int position) {
+            while (map.get(position) != '\n') {
+                position++;
+            }
+            return position;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Could not close history segment " + file + ": " + e.getMessage());
+            }
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.out.println("Could not delete old history segment " + file + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,582 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Chat server engine built on non-blocking channels. One or more threads
+ * accept connections and deal them out to a fixed set of reactor threads,
+ * normally one per core; each reactor waits on its own Selector and does all reading
+ * and writing for its connections. An idle connection therefore costs a
+ * channel, a selection key and a small Connection object rather than a thread
+ * and its stack, which is what lets one process hold 100k clients.
+ *
+ * Lines, or ChatProtocol frames once a client has switched to them, are taken
+ * straight out of a direct buffer owned by the reactor, so a connection only
+ * keeps bytes of its own while one is split across reads, and never more
+ * than --max-line of them: a longer line or frame closes the connection. A
+ * client over its --byte-rate stops being read (OP_READ is dropped) until the
+ * timer wheel says it has earned more, so TCP flow control holds it back.
+ * Outgoing lines wait in the connection's bounded OutboundQueue, whose
+ * overflow policy deals with a client that falls too far behind. Only the
+ * reactor writes to the channel: it takes everything queued in one go and
+ * hands it to a single gathering write, straight from the buffers the
+ * broadcast encoded once for all recipients. When the socket cannot take it
+ * all the connection asks for OP_WRITE and finishes once the socket drains.
+ * History replayed to a text client is sent straight from the log files with
+ * FileChannel.transferTo(), in its place among the queued lines.
+ *
+ * With TLS each connection reads and writes through a TlsChannel, which runs
+ * the handshake on the reactor as the client's messages arrive, so a
+ * connection storm costs CPU rather than threads, and encrypts each gathering
+ * write as a few records sent with one system call. The reactor owns the
+ * scratch buffers TLS works in, just as it owns the read buffer.
+ */
+class NioChatEngine {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final int port;
+    private final int acceptors;
+    private final SSLContext tls;
+    private final Reactor[] reactors;
+
+    /**
+     * @param tls the server's TLS context, or null for plain connections
+     */
+    NioChatEngine(int port, int reactorCount, int acceptors, SSLContext tls) throws IOException {
+        this.port = port;
+        this.acceptors = Math.max(1, acceptors);
+        this.tls = tls;
+        reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i);
+        }
+    }
+
+    /**
+     * Starts the reactors and the acceptor threads, and waits for them, forever.
+     * With several acceptors each gets a listening channel of its own on the
+     * same port through SO_REUSEPORT where available, so the kernel spreads
+     * a connection storm across them; otherwise they share one channel.
+     */
+    void run() throws IOException {
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+        SocketOption<Boolean> reusePort = acceptors > 1 ? ChatServer.reusePortOption() : null;
+        List<ServerSocketChannel> servers = new ArrayList<>();
+        do {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            boolean shared = reusePort == null || !server.supportedOptions().contains(reusePort);
+            if (!shared) {
+                server.setOption(reusePort, true);
+            }
+            server.bind(new InetSocketAddress(port), ChatServer.ACCEPT_BACKLOG);
+            servers.add(server);
+            if (shared) {
+                break;
+            }
+        } while (servers.size() < acceptors);
+        System.out.println("Server is running and waiting for connections... (nio, "
+                + reactors.length + " reactor threads, " + acceptors + " acceptor threads"
+                + (servers.size() > 1 ? ", SO_REUSEPORT" : "") + (tls != null ? ", TLS)" : ")"));
+
+        Thread[] threads = new Thread[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocketChannel server = servers.get(i % servers.size());
+            int first = i % reactors.length;
+            threads[i] = new Thread(() -> accept(server, first), "chat-acceptor-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One acceptor thread: accepts connections and deals them out round-robin,
+     * starting from its own reactor so several acceptors do not pile onto the
+     * same one.
+     */
+    private void accept(ServerSocketChannel server, int next) {
+        while (server.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                ChatServer.acceptFailed(e);
+                continue;
+            }
+            TlsChannel secure = null;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ChatServer.keepAlive(channel.socket());
+                if (tls != null) {
+                    secure = new TlsChannel(channel, ChatTls.serverEngine(tls), reactors[next].tlsBuffers);
+                }
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException closeFailed) {
+                    // Already gone
+                }
+                continue;
+            }
+            ChatMetrics.connectionsAccepted.increment();
+            Connection connection = new Connection(channel, secure, ChatServer.assignId(), reactors[next]);
+            next = (next + 1) % reactors.length;
+            ChatServer.addClient(connection);
+            connection.reactor.register(connection);
+        }
+    }
+
+    /**
+     * A selector thread serving a share of the connections. Other threads
+     * hand it work through three queues and wake it up: connections to
+     * register, connections with output waiting, and connections to read
+     * from again after a pause.
+     */
+    private static class Reactor extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Connection> registrations = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Connection> flushes = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Connection> resumes = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final TlsChannel.Buffers tlsBuffers = new TlsChannel.Buffers(); // allocated on first use
+        private final List<ByteBuffer> batch = new ArrayList<>(); // lines being moved from a queue to a socket
+
+        Reactor(int index) throws IOException {
+            super("chat-reactor-" + index);
+            selector = Selector.open();
+        }
+
+        void register(Connection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(Connection connection) {
+            flushes.add(connection);
+            selector.wakeup();
+        }
+
+        void scheduleResume(Connection connection) {
+            resumes.add(connection);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                Connection connection;
+                while ((connection = registrations.poll()) != null) {
+                    connection.open(selector);
+                }
+                while ((connection = flushes.poll()) != null) {
+                    connection.flush();
+                }
+                while ((connection = resumes.poll()) != null) {
+                    connection.resumeReading();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One client connection. send() may be called from any thread;
+     * everything else runs on the connection's reactor.
+     */
+    private static class Connection extends ChatServer.Session {
+        private final SocketChannel channel;
+        private final TlsChannel tls; // or null for a plain connection
+        private final GatheringByteChannel io; // tls, or the channel itself, for writing
+        private final Reactor reactor;
+        private SelectionKey key;
+        private byte[] partial = new byte[0]; // start of a line or frame not yet complete
+        private int partialLength = 0;
+        private int readOps = SelectionKey.OP_READ; // 0 while reading is paused
+
+        private final OutboundQueue outbound = getOutboundQueue();
+        private ByteBuffer[] unsent; // the last batch taken from the queue, written up to unsentOffset
+        private int unsentOffset = 0;
+        private ArrayDeque<MessageLog.Region> transfers; // history to send from the log files after unsent
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(true); // until open() registers
+        private volatile boolean closeRequested = false;
+        private boolean closed = false;
+
+        Connection(SocketChannel channel, TlsChannel tls, int id, Reactor reactor) {
+            super(id);
+            this.channel = channel;
+            this.tls = tls;
+            this.io = tls != null ? tls : channel;
+            this.reactor = reactor;
+            // The greeting goes first, ahead of anything broadcast before the channel is registered
+            outbound.offer(ChatServer.encode(ChatServer.greeting(id)));
+            ChatMetrics.messagesOut.increment();
+        }
+
+        @Override
+        void lineQueued() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                reactor.scheduleFlush(this);
+            }
+        }
+
+        @Override
+        void disconnect() {
+            closeRequested = true; // the reactor closes it
+            reactor.scheduleFlush(this);
+        }
+
+        /**
+         * Sends history to a text client from the log files, without copying it
+         * through the heap. Everything queued before it is moved into the
+         * unsent batch so the history lands after it; lines queued later wait in
+         * the queue until the transfer is done. Runs on the reactor, reading the
+         * command or running the replay the history writer handed back.
+         */
+        @Override
+        void sendHistory(List<MessageLog.Region> regions) {
+            if (isBinary() || transfers != null || closed) {
+                super.sendHistory(regions); // frames, or a second replay queued behind the first
+                return;
+            }
+            ByteBuffer[] queued = takeQueued();
+            if (queued != null) {
+                if (unsent == null) {
+                    unsent = queued;
+                } else {
+                    ByteBuffer[] rest = Arrays.copyOfRange(unsent, unsentOffset, unsent.length + queued.length);
+                    System.arraycopy(queued, 0, rest, unsent.length - unsentOffset, queued.length);
+                    unsent = rest;
+                }
+                unsentOffset = 0;
+            }
+            transfers = new ArrayDeque<>(regions);
+            lineQueued();
+        }
+
+        @Override
+        void runOnReader(Runnable task) {
+            reactor.execute(task);
+        }
+
+        /**
+         * Registers with the reactor's selector and sends what has been queued so far.
+         */
+        void open(Selector selector) {
+            try {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            flush();
+        }
+
+        /**
+         * Reads what the socket has and handles every complete line or frame
+         * in it. With TLS it goes on while the TlsChannel holds records already
+         * taken off the socket, and once the handshake is done it sends what
+         * was queued meanwhile, starting with the greeting.
+         */
+        void read(ByteBuffer buffer) {
+            boolean handshaking = tls != null && tls.isHandshaking();
+            while (readSome(buffer) && tls != null && readOps != 0 && tls.hasBufferedInput()) {
+                // Whole records wait in the TlsChannel, and the selector will not report them
+            }
+            if (tls != null && !closed && (handshaking && !tls.isHandshaking() || tls.wantsWrite())) {
+                flush();
+            }
+        }
+
+        /**
+         * Does one read for read().
+         *
+         * @return false if the connection was closed
+         */
+        private boolean readSome(ByteBuffer buffer) {
+            buffer.clear();
+            int count;
+            try {
+                count = tls != null ? tls.read(buffer) : channel.read(buffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                close();
+                return false;
+            }
+            long pause = bytesReceived(count);
+            inputReceived();
+            buffer.flip();
+            ByteBuffer input = buffer;
+            if (partialLength > 0) {
+                // Finish what the last read started: append to it and work from there
+                ensurePartial(partialLength + count);
+                buffer.get(partial, partialLength, count);
+                input = ByteBuffer.wrap(partial, 0, partialLength + count);
+            }
+            try {
+                // The protocol can change after any line, so it is checked for each one
+                while (input.hasRemaining() && (isBinary() ? frameReceived(input) : lineReceived(input))) {
+                }
+            } catch (ChatProtocol.TooLongException e) {
+                ChatServer.inputTooLong(this);
+                close();
+                return false;
+            } catch (IOException e) {
+                close(); // a malformed frame
+                return false;
+            }
+            partialLength = input.remaining();
+            if (!isBinary() && partialLength > ChatServer.maxLineBytes()) {
+                ChatServer.inputTooLong(this); // a line that has not ended yet; frames are checked by their header
+                close();
+                return false;
+            }
+            if (partialLength > 0) {
+                ensurePartial(partialLength);
+                input.get(partial, 0, partialLength); // may move the rest down within partial itself
+            } else if (partial.length > READ_BUFFER_SIZE) {
+                partial = new byte[0]; // do not keep a huge buffer around after one long line
+            }
+            if (pause > 0 && !closed) {
+                readOps = 0;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                ChatServer.timers.schedule(pause, () -> reactor.scheduleResume(this));
+            }
+            return !closed;
+        }
+
+        /**
+         * Starts reading again after a pause for going over the byte rate.
+         */
+        void resumeReading() {
+            if (closed) {
+                return;
+            }
+            readOps = SelectionKey.OP_READ;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            if (tls != null && tls.hasBufferedInput()) {
+                read(reactor.readBuffer); // the socket may have nothing more to wake us with
+            }
+        }
+
+        private void ensurePartial(int length) {
+            if (length > partial.length) {
+                partial = Arrays.copyOf(partial, Math.max(length, partial.length * 2));
+            }
+        }
+
+        /**
+         * Handles the next line if the input holds all of it.
+         *
+         * @return false if the line is not complete yet
+         * @throws ChatProtocol.TooLongException if the line is longer than --max-line
+         */
+        private boolean lineReceived(ByteBuffer input) throws IOException {
+            for (int i = input.position(); i < input.limit(); i++) {
+                if (input.get(i) == '\n') {
+                    int length = i - input.position();
+                    if (length > ChatServer.maxLineBytes()) {
+                        throw new ChatProtocol.TooLongException("Line of " + length + " bytes");
+                    }
+                    if (length > 0 && input.get(i - 1) == '\r') {
+                        length--;
+                    }
+                    byte[] bytes = new byte[length];
+                    input.get(bytes);
+                    input.position(i + 1);
+                    ChatServer.lineReceived(this, new String(bytes, StandardCharsets.UTF_8));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Handles the next frame if the input holds all of it.
+         *
+         * @return false if the frame is not complete yet
+         */
+        private boolean frameReceived(ByteBuffer input) throws IOException {
+            ByteBuffer frame = ChatProtocol.nextFrame(input, ChatServer.maxLineBytes());
+            if (frame == null) {
+                return false;
+            }
+            ChatServer.frameReceived(this, frame);
+            return true;
+        }
+
+        /**
+         * Writes as much queued output as the socket takes, and asks for
+         * OP_WRITE if some is left over.
+         */
+        void flush() {
+            if (closed || key == null) {
+                return; // open() flushes once the channel is registered
+            }
+            if (closeRequested) {
+                close();
+                return;
+            }
+            try {
+                if (tls != null && (!tls.flush() || tls.isHandshaking())) {
+                    // Until the handshake is done nothing can be sent; flushScheduled stays set and read() calls back
+                    key.interestOps(readOps | (tls.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+                    return;
+                }
+                while (true) {
+                    if (unsent == null) {
+                        if (transfers != null) {
+                            if (!transfer()) {
+                                key.interestOps(readOps | SelectionKey.OP_WRITE);
+                                return;
+                            }
+                            transfers = null;
+                        }
+                        unsent = takeQueued();
+                        unsentOffset = 0;
+                        if (unsent == null) {
+                            break;
+                        }
+                    }
+                    ChatMetrics.bytesOut.add(io.write(unsent, unsentOffset, unsent.length - unsentOffset));
+                    while (unsentOffset < unsent.length && !unsent[unsentOffset].hasRemaining()) {
+                        unsent[unsentOffset++] = null;
+                    }
+                    if (unsentOffset < unsent.length) {
+                        key.interestOps(readOps | SelectionKey.OP_WRITE);
+                        return; // flushScheduled stays set; OP_WRITE brings us back
+                    }
+                    unsent = null;
+                }
+                if (tls != null && tls.wantsWrite()) {
+                    key.interestOps(readOps | SelectionKey.OP_WRITE); // the last records are still on their way
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            key.interestOps(readOps);
+            flushScheduled.set(false);
+            // A line queued after takeQueued() found nothing saw the flag still set and did not schedule us
+            if (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+                reactor.scheduleFlush(this);
+            }
+        }
+
+        /**
+         * Sends pending history from the log files.
+         *
+         * @return false if the socket filled up before it was all sent
+         */
+        private boolean transfer() throws IOException {
+            MessageLog.Region region;
+            while ((region = transfers.peek()) != null) {
+                long sent = region.transferTo(io);
+                ChatMetrics.bytesOut.add(sent);
+                if (sent < region.length()) {
+                    transfers.poll();
+                    transfers.addFirst(region.skip(sent));
+                    return false;
+                }
+                transfers.poll();
+            }
+            return true;
+        }
+
+        /**
+         * Takes every queued line, or null if there are none. The lines are
+         * shared with other connections, so each gets a duplicate() here that
+         * carries this connection's write position without copying any bytes.
+         * For a binary client the lot goes out as one BATCH frame.
+         */
+        private ByteBuffer[] takeQueued() {
+            List<ByteBuffer> batch = reactor.batch;
+            batch.clear();
+            if (outbound.drainTo(batch) == 0) {
+                return null;
+            }
+            if (isBinary()) {
+                ChatProtocol.wrapBatch(batch);
+            }
+            ByteBuffer[] lines = new ByteBuffer[batch.size()];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = batch.get(i).duplicate();
+            }
+            batch.clear();
+            return lines;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outbound.close();
+            unsent = null;
+            transfers = null;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                io.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            ChatServer.removeClient(this);
+        }
+    }
+}
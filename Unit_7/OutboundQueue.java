@@ -0,0 +1,224 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded lines waiting to be written to one client. Senders
+ * only ever add to it, so a broadcast costs each recipient an offer() however
+ * slowly that recipient reads; the client's own writer takes the lines off.
+ *
+ * A broadcast line is encoded once and the same buffer is queued for every
+ * recipient, so queued buffers are shared: nobody may change their contents
+ * or position, and a writer works on a duplicate().
+ *
+ * The queue holds at most a given number of lines and bytes. What happens to
+ * a line that does not fit is the OverflowPolicy's choice. The queue also
+ * keeps its own statistics (current and peak depth, lines dropped) so the
+ * server can report how far behind each client is.
+ *
+ * The lock is a ReentrantLock rather than a monitor so that a virtual thread
+ * waiting in awaitLines() does not pin its carrier thread.
+ */
+class OutboundQueue {
+    /**
+     * What to do with a line that arrives when the queue is full.
+     */
+    enum OverflowPolicy {
+        /** Drop the oldest queued lines to make room; the client silently misses them. */
+        DROP_OLDEST,
+        /** Refuse the line and have the client disconnected as a slow consumer. */
+        DISCONNECT,
+        /** Drop the oldest lines like DROP_OLDEST, and tell the client how many it missed. */
+        COALESCE;
+
+        static OverflowPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final int maxLines;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile Function<String, ByteBuffer> noticeEncoder =
+            notice -> ByteBuffer.wrap((notice + "\n").getBytes(StandardCharsets.UTF_8));
+    private volatile Runnable dropListener = () -> { };
+
+    // Guarded by lock
+    private final ArrayDeque<ByteBuffer> lines = new ArrayDeque<>();
+    private long bytes = 0;
+    private int peakDepth = 0;
+    private long dropped = 0;
+    private long skippedSinceNotice = 0;
+    private boolean closed = false;
+
+    OutboundQueue(int maxLines, long maxBytes, OverflowPolicy policy) {
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * Sets how the queue encodes its own notices, for a client that has left
+     * the line protocol.
+     */
+    void setNoticeEncoder(Function<String, ByteBuffer> encoder) {
+        noticeEncoder = encoder;
+    }
+
+    /**
+     * Sets what to run after the overflow policy has dropped lines, for a
+     * client whose later lines depend on earlier ones having arrived.
+     */
+    void setDropListener(Runnable listener) {
+        dropListener = listener;
+    }
+
+    /**
+     * Adds a line, applying the overflow policy if it does not fit.
+     *
+     * @return false if the queue is closed, or the policy is DISCONNECT and the
+     *         line did not fit; the caller should then drop the client
+     */
+    boolean offer(ByteBuffer line) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            int length = line.remaining();
+            if (lines.size() >= maxLines || bytes + length > maxBytes) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    ChatMetrics.slowDisconnects.increment();
+                    dropped++;
+                    closed = true;
+                    notEmpty.signalAll();
+                    return false;
+                }
+                while (!lines.isEmpty() && (lines.size() >= maxLines || bytes + length > maxBytes)) {
+                    bytes -= lines.poll().remaining();
+                    dropped++;
+                    skippedSinceNotice++;
+                }
+                dropListener.run();
+            }
+            lines.add(line);
+            bytes += length;
+            peakDepth = Math.max(peakDepth, lines.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves every queued line into the batch, preceded under COALESCE by a
+     * notice of how many lines were skipped since the last batch.
+     *
+     * @return the number of lines added to the batch
+     */
+    int drainTo(List<ByteBuffer> batch) {
+        lock.lock();
+        try {
+            int count = lines.size();
+            if (policy == OverflowPolicy.COALESCE && skippedSinceNotice > 0) {
+                batch.add(noticeEncoder.apply("*** " + skippedSinceNotice
+                        + " messages skipped, you were too far behind ***"));
+                skippedSinceNotice = 0;
+                count++;
+            }
+            batch.addAll(lines);
+            lines.clear();
+            bytes = 0;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until there is something to drain or the queue is closed.
+     *
+     * @return false once the queue is closed and empty
+     */
+    boolean awaitLines() throws InterruptedException {
+        lock.lock();
+        try {
+            while (lines.isEmpty() && !closed) {
+                notEmpty.await(1, TimeUnit.SECONDS);
+            }
+            return !lines.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Refuses further lines; awaitLines() returns false once the rest are drained.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return lines.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Lines waiting now. */
+    int depth() {
+        lock.lock();
+        try {
+            return lines.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Bytes waiting now. */
+    long bytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The most lines ever waiting at once. */
+    int peakDepth() {
+        lock.lock();
+        try {
+            return peakDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Lines thrown away by the overflow policy. */
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
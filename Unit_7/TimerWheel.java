@@ -0,0 +1,157 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel: one thread keeping any number of timeouts, each of
+ * which costs O(1) to schedule and to cancel however many there are.
+ *
+ * The wheel is a ring of buckets, one per tick. A timeout goes into the
+ * bucket its deadline falls in, counting how many more turns of the wheel it
+ * must wait if it is further away than one turn. Each tick the thread visits
+ * just one bucket, running what is due and leaving the rest for later turns,
+ * so the work per tick is the timeouts in one bucket rather than all of them.
+ * Deadlines are only as precise as the tick.
+ *
+ * Any thread may schedule or cancel. New timeouts go onto a lock-free queue
+ * that the wheel thread empties into the buckets each tick; cancelling only
+ * marks a timeout, and the wheel drops it when it comes round to its bucket.
+ * Tasks run on the wheel thread, so they must be short and must not block.
+ */
+class TimerWheel {
+    private final long tickMillis;
+    private final Timeout[] buckets; // heads of singly linked lists
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private volatile long now = 0; // milliseconds since start, as of the last tick
+    private long tick = 1; // the tick being run, due tick * tickMillis after start; wheel thread only
+
+    /**
+     * @param tickMillis the length of one tick
+     * @param size       the number of buckets; one turn of the wheel is size ticks
+     */
+    TimerWheel(long tickMillis, int size) {
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[size];
+    }
+
+    /**
+     * Starts the wheel thread.
+     */
+    void start() {
+        Thread thread = new Thread(this::turn, "chat-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the time of the last tick, in milliseconds since the wheel was
+     * created. It costs a volatile read, so it suits code that runs for every
+     * message.
+     */
+    long now() {
+        return now;
+    }
+
+    /**
+     * Runs a task on the wheel thread once a delay has passed.
+     *
+     * @param delayMillis how long to wait; rounded up to whole ticks
+     * @return the timeout, which can be cancelled
+     */
+    Timeout schedule(long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(now + Math.max(0, delayMillis), task);
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void turn() {
+        long next = tickMillis;
+        while (true) {
+            long sleep = next - elapsedMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            next += tickMillis;
+            now = elapsedMillis();
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                if (!timeout.cancelled) {
+                    place(timeout);
+                }
+            }
+            expire((int) (tick % buckets.length));
+            tick++;
+        }
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * Puts a timeout in the bucket of the tick its deadline falls in, or in the
+     * current one if that has passed.
+     */
+    private void place(Timeout timeout) {
+        long ticks = Math.max(tick, (timeout.deadline + tickMillis - 1) / tickMillis);
+        timeout.rounds = (ticks - tick) / buckets.length;
+        int bucket = (int) (ticks % buckets.length);
+        timeout.next = buckets[bucket];
+        buckets[bucket] = timeout;
+    }
+
+    /**
+     * Runs the due timeouts in a bucket and drops the cancelled ones; the rest
+     * wait another turn.
+     */
+    private void expire(int bucket) {
+        Timeout kept = null;
+        Timeout timeout = buckets[bucket];
+        buckets[bucket] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                timeout.next = null;
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+                timeout.next = kept;
+                kept = timeout;
+            } else {
+                timeout.next = null;
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // one bad task must not stop the wheel
+                }
+            }
+            timeout = next;
+        }
+        buckets[bucket] = kept;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout {
+        private final long deadline;
+        private final Runnable task;
+        private volatile boolean cancelled = false;
+        private long rounds; // turns of the wheel still to wait; wheel thread only
+        private Timeout next; // in its bucket; wheel thread only
+
+        private Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Stops the task from running, if it has not run yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
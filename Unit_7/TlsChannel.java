@@ -0,0 +1,362 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS over a SocketChannel, through an SSLEngine, as a channel that reads and
+ * writes plain bytes. It works the same whether the socket is blocking or
+ * not, so the server's reactors, the client and the load test all use it.
+ *
+ * The handshake runs inside read(): the engine's messages are written as it
+ * asks for them, and read() returns 0 until application data arrives. Until
+ * the handshake is done write() takes nothing, so callers should hold their
+ * output back while isHandshaking() and not wait for OP_WRITE meanwhile.
+ * The engine's delegated tasks, signing and key checks, run on the calling
+ * thread.
+ *
+ * A connection only keeps bytes of its own between calls: ciphertext that
+ * arrived without the rest of its record, plaintext that did not fit the
+ * caller's buffer, and ciphertext the socket would not take yet. Everything
+ * else passes through Buffers shared by all the connections one thread
+ * serves, so an idle TLS connection costs little more than a plain one.
+ * Because of those leftovers the selector cannot tell the whole story:
+ * <ul>
+ *   <li>after a read, call read() again while hasBufferedInput(), since the
+ *       socket may be empty with a whole record already taken off it;</li>
+ *   <li>after a write, ask for OP_WRITE while wantsWrite(), and call flush()
+ *       when it comes, even if write() took every byte it was given.</li>
+ * </ul>
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+    private static final int RECORD_HEADER = 5; // type, version, 16-bit length
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Buffers buffers;
+    private final int applicationBufferSize;
+    private boolean handshaking = true;
+    private ByteBuffer netPending;  // ciphertext read but not yet unwrapped, ready for reading
+    private ByteBuffer appPending;  // plaintext unwrapped but not yet returned, ready for reading
+    private ByteBuffer outPending;  // ciphertext wrapped but not yet written, ready for reading
+
+    /**
+     * Starts a TLS connection over a connected socket. A client sends its
+     * first handshake message straight away.
+     *
+     * @param engine  the engine, already set to client or server mode
+     * @param buffers scratch space shared by every channel the calling thread serves
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine, Buffers buffers) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.buffers = buffers;
+        this.applicationBufferSize = engine.getSession().getApplicationBufferSize();
+        engine.beginHandshake();
+        if (engine.getUseClientMode()) {
+            wrap(NOTHING, 0, 1);
+        }
+    }
+
+    /**
+     * Returns whether the handshake is still going on, so nothing can be written yet.
+     */
+    boolean isHandshaking() {
+        return handshaking;
+    }
+
+    /**
+     * Returns whether bytes are waiting in this channel that another read()
+     * would return without anything more arriving on the socket.
+     */
+    boolean hasBufferedInput() {
+        if (appPending != null) {
+            return true;
+        }
+        if (netPending == null || netPending.remaining() < RECORD_HEADER) {
+            return false;
+        }
+        int at = netPending.position();
+        int length = (netPending.get(at + 3) & 0xFF) << 8 | netPending.get(at + 4) & 0xFF;
+        return netPending.remaining() >= RECORD_HEADER + length;
+    }
+
+    /**
+     * Returns whether ciphertext is waiting for the socket to take it.
+     */
+    boolean wantsWrite() {
+        return outPending != null;
+    }
+
+    /**
+     * Returns the TLS session, e.g. to see whether it was resumed.
+     */
+    SSLSession session() {
+        return engine.getSession();
+    }
+
+    /**
+     * Writes ciphertext left over from earlier writes.
+     *
+     * @return true if none is left
+     */
+    boolean flush() throws IOException {
+        if (outPending == null) {
+            return true;
+        }
+        channel.write(outPending);
+        if (outPending.hasRemaining()) {
+            return false;
+        }
+        outPending = null;
+        return true;
+    }
+
+    /**
+     * Reads plaintext, taking part in the handshake as needed on the way.
+     *
+     * @return the bytes read, possibly 0, or -1 once the other side has closed
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int produced = 0;
+        if (appPending != null) {
+            produced = move(appPending, dst);
+            if (appPending.hasRemaining()) {
+                return produced;
+            }
+            appPending = null;
+        }
+        ByteBuffer in = buffers.netIn(engine.getSession());
+        if (netPending != null) {
+            in.put(netPending);
+            netPending = null;
+        }
+        in.flip();
+        try {
+            while (flush()) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    wrap(NOTHING, 0, 1);
+                    continue;
+                }
+                if (produced > 0 && (!in.hasRemaining() || dst.remaining() < applicationBufferSize)) {
+                    return produced;
+                }
+                ByteBuffer app = dst.remaining() >= applicationBufferSize ? dst : buffers.appIn(engine.getSession());
+                SSLEngineResult result = engine.unwrap(in, app);
+                update(result);
+                switch (result.getStatus()) {
+                    case OK:
+                        if (app == dst) {
+                            produced += result.bytesProduced();
+                        } else if (result.bytesProduced() > 0) {
+                            app.flip();
+                            produced += move(app, dst);
+                            if (app.hasRemaining()) {
+                                appPending = copy(app); // the caller's buffer is full
+                                return produced;
+                            }
+                        }
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        if (produced > 0) {
+                            return produced;
+                        }
+                        in.compact();
+                        int count = channel.read(in);
+                        in.flip();
+                        if (count < 0) {
+                            closeInbound();
+                            return -1;
+                        }
+                        if (count == 0) {
+                            return 0;
+                        }
+                        break;
+                    case CLOSED:
+                        return produced > 0 ? produced : -1;
+                    default:
+                        throw new SSLException("Unexpected result from unwrap: " + result);
+                }
+            }
+            return produced; // handshake messages wait for the socket; see wantsWrite()
+        } finally {
+            if (in.hasRemaining()) {
+                netPending = copy(in);
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts and writes as much plaintext as the socket takes, several
+     * records to a system call. Nothing is taken while the handshake is going
+     * on or while earlier ciphertext is still waiting for the socket.
+     *
+     * @return the plaintext bytes taken
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (handshaking || !flush()) {
+            return 0;
+        }
+        return wrap(srcs, offset, length);
+    }
+
+    /**
+     * Wraps plaintext, or just handshake messages when given none, into as
+     * many records as fit the scratch buffer, and writes them.
+     */
+    private long wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ByteBuffer out = buffers.netOut(engine.getSession());
+        int packetSize = engine.getSession().getPacketBufferSize();
+        long consumed = 0;
+        while (out.remaining() >= packetSize) {
+            SSLEngineResult result = engine.wrap(srcs, offset, length, out);
+            update(result);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            }
+            consumed += result.bytesConsumed();
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            if (result.bytesProduced() == 0
+                    || !hasRemaining(srcs, offset, length) && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                break;
+            }
+        }
+        out.flip();
+        channel.write(out);
+        if (out.hasRemaining()) {
+            outPending = copy(out);
+        }
+        return consumed;
+    }
+
+    private void update(SSLEngineResult result) {
+        HandshakeStatus status = result.getHandshakeStatus();
+        if (status == HandshakeStatus.FINISHED || status == HandshakeStatus.NOT_HANDSHAKING) {
+            handshaking = false;
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void closeInbound() {
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // Closed without close_notify; the connection is over either way
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify if the socket takes it at once, and closes the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            if (outPending == null) {
+                ByteBuffer out = buffers.netOut(engine.getSession());
+                engine.wrap(NOTHING, out);
+                out.flip();
+                channel.write(out);
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int move(ByteBuffer from, ByteBuffer to) {
+        int count = Math.min(from.remaining(), to.remaining());
+        ByteBuffer slice = from.duplicate();
+        slice.limit(slice.position() + count);
+        to.put(slice);
+        from.position(from.position() + count);
+        return count;
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer).flip();
+        return copy;
+    }
+
+    /**
+     * Scratch buffers for the TLS channels one thread serves. Each call hands
+     * out a cleared buffer, so a channel must be done with it before the
+     * thread turns to another channel.
+     */
+    static final class Buffers {
+        private static final int RECORDS = 4; // records moved per system call at most
+
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+
+        ByteBuffer netIn(SSLSession session) {
+            return netIn = cleared(netIn, RECORDS * session.getPacketBufferSize());
+        }
+
+        ByteBuffer netOut(SSLSession session) {
+            return netOut = cleared(netOut, RECORDS * session.getPacketBufferSize());
+        }
+
+        ByteBuffer appIn(SSLSession session) {
+            return appIn = cleared(appIn, session.getApplicationBufferSize());
+        }
+
+        private static ByteBuffer cleared(ByteBuffer buffer, int capacity) {
+            if (buffer == null || buffer.capacity() < capacity) {
+                return ByteBuffer.allocate(capacity);
+            }
+            buffer.clear();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * A token bucket: an allowance that refills at a steady rate up to a burst
+ * size, for limiting how fast one client may send.
+ *
+ * Each client's buckets are only used by the thread reading from it, so they
+ * take no lock and cost a few arithmetic operations per call. The time comes
+ * from the caller, normally TimerWheel.now(), which is cheaper to read than
+ * the system clock and precise enough for rates per second.
+ */
+class TokenBucket {
+    private final long rate; // tokens per second; 0 for no limit
+    private final long burst;
+    private long tokens;
+    private long refilledAt; // milliseconds, on the caller's clock
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param rate  tokens added per second, or 0 for a bucket that never runs out
+     * @param burst the most tokens it holds
+     * @param now   the current time in milliseconds
+     */
+    TokenBucket(long rate, long burst, long now) {
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.refilledAt = now;
+    }
+
+    /**
+     * Takes tokens if there are enough, and otherwise takes none.
+     *
+     * @return whether the tokens were taken
+     */
+    boolean tryTake(long count, long now) {
+        if (rate == 0) {
+            return true;
+        }
+        refill(now);
+        if (tokens < count) {
+            return false;
+        }
+        tokens -= count;
+        return true;
+    }
+
+    /**
+     * Takes tokens whether or not there are enough, running into debt if
+     * need be; for bytes that have already arrived.
+     *
+     * @return how many milliseconds until the debt is paid off, or 0 if there is none
+     */
+    long take(long count, long now) {
+        if (rate == 0) {
+            return 0;
+        }
+        refill(now);
+        tokens -= count;
+        return tokens >= 0 ? 0 : (-tokens * 1000 + rate - 1) / rate;
+    }
+
+    private void refill(long now) {
+        long added = (now - refilledAt) * rate / 1000;
+        if (added > 0) {
+            tokens = Math.min(burst, tokens + added);
+            // Keep the fraction of a token not added yet, unless the bucket is full anyway
+            refilledAt = tokens == burst ? now : refilledAt + added * 1000 / rate;
+        }
+    }
+}